@@ -16,27 +16,75 @@
  */
 package com.github.hexocraft;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.*;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
 
@@ -69,6 +117,40 @@ public class DMRelocator {
 
     // Ignore artifact hash result
     private boolean ignoreHash = false;
+    // Number of artifacts downloaded at the same time
+    private int downloadThreads = 4;
+    // Use virtual threads (JDK 21+) for the download phase
+    private boolean virtualThreads = false;
+    // Number of repositories probed at the same time
+    private int hedgedResolution = 1;
+    // Verify downloaded artifacts against the repository checksum files
+    private boolean verifyChecksums = false;
+    // How long a repository is known not to host an artifact (in milliseconds)
+    private long resolutionCacheTtl = 0;
+    // HTTP client used to download files
+    private Transport transport = Transport.pooled();
+    // Number of artifacts relocated at the same time
+    private int relocationThreads = Runtime.getRuntime().availableProcessors();
+    // Relocate each artifact as soon as it is downloaded
+    private boolean pipelined = false;
+    // Relocation engine
+    private Engine engine = Engine.JAR_RELOCATOR;
+    // Format of the relocated artifacts
+    private OutputFormat outputFormat = OutputFormat.JAR;
+    // Load the artifacts with a DMRelocator class loader, even if they can be added to the class loader
+    private boolean ownClassLoader = false;
+    // Maintain the JVM options using a class data sharing archive of the relocated artifacts
+    private boolean classDataSharing = false;
+    // Relocate each class when it is loaded, instead of relocating the artifacts
+    private boolean lazy = false;
+    // Reuse the artifacts recorded by the lock manifest, without resolving or verifying them again
+    private boolean locked = false;
+    // Ignore the lock manifest on the next relocation
+    private boolean refresh = false;
+    // Add the dependencies of the artifacts, read from their POM files
+    private boolean transitive = false;
+    // DMRelocator class loader, created when the first artifact is added to it
+    private LibraryClassLoader libraryClassLoader;
 
     // Logger
     private Consumer<String> logger = System.out::println;
@@ -151,6 +233,286 @@ public class DMRelocator {
         return this;
     }
 
+    /**
+     * Verify downloaded artifacts against the checksum files (.sha1 or .sha256)
+     * provided by the repository
+     * (Default to false)
+     *
+     * @param verify true to verify downloaded artifacts
+     * @return instance of DMRelocator
+     */
+    public DMRelocator verifyChecksums(boolean verify) {
+        this.verifyChecksums = verify;
+        return this;
+    }
+
+    /**
+     * Number of artifacts downloaded at the same time
+     * (Default to 4)
+     *
+     * @param threads number of concurrent downloads, 1 to download artifacts one after another
+     * @return instance of DMRelocator
+     */
+    public DMRelocator downloadThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be greater than 0.");
+        }
+        this.downloadThreads = threads;
+        return this;
+    }
+
+    /**
+     * Number of artifacts relocated at the same time
+     * (Default to the number of available processors)
+     * <p>
+     * Artifacts are always added to the class loader in the order they were added,
+     * whatever the order in which their relocation ends.
+     *
+     * @param threads number of concurrent relocations, 1 to relocate artifacts one after another
+     * @return instance of DMRelocator
+     */
+    public DMRelocator relocationThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be greater than 0.");
+        }
+        this.relocationThreads = threads;
+        return this;
+    }
+
+    /**
+     * Relocation engine
+     * (Default to {@link Engine#JAR_RELOCATOR})
+     *
+     * @param engine relocation engine
+     * @return instance of DMRelocator
+     */
+    public DMRelocator engine(Engine engine) {
+        this.engine = requireNonNull(engine, "engine cannot be null");
+        return this;
+    }
+
+    /**
+     * Format of the relocated artifacts
+     * (Default to {@link OutputFormat#JAR})
+     * <p>
+     * Uncompressed jars take more disk space, but classes are loaded from them
+     * without being inflated. Folders hold the classes and resources as plain files,
+     * which can be inspected or edited, they do not load faster than jar files.
+     *
+     * @param outputFormat output format
+     * @return instance of DMRelocator
+     */
+    public DMRelocator outputFormat(OutputFormat outputFormat) {
+        this.outputFormat = requireNonNull(outputFormat, "outputFormat cannot be null");
+        return this;
+    }
+
+    /**
+     * Relocate each artifact as soon as it is downloaded, while the next artifacts are still
+     * downloading, instead of waiting for all the downloads to end.
+     * <p>
+     * Artifacts are still added to the class loader in the order they were added.
+     * (Default to false)
+     *
+     * @param pipelined true to overlap downloads and relocations
+     * @return instance of DMRelocator
+     */
+    public DMRelocator pipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * Load the artifacts with a DMRelocator class loader, child of the class loader,
+     * instead of adding them to the class loader.
+     * <p>
+     * The DMRelocator class loader indexes the packages of each artifact, so a class is
+     * read right away from the artifact defining its package. The relocated classes are
+     * then not visible from the class loader: use {@link #getClassLoader()} to load them.
+     * A DMRelocator class loader is always used when the class loader is not a
+     * URLClassLoader, like the application class loader since Java 9.
+     * (Default to false)
+     *
+     * @param ownClassLoader true to load the artifacts with a DMRelocator class loader
+     * @return instance of DMRelocator
+     */
+    public DMRelocator ownClassLoader(boolean ownClassLoader) {
+        this.ownClassLoader = ownClassLoader;
+        return this;
+    }
+
+    /**
+     * Relocate each class of the artifacts when it is first loaded, instead of relocating
+     * the whole artifacts when {@link #relocate()} is called.
+     * <p>
+     * The artifacts are loaded from the cache folder by a DMRelocator class loader, which
+     * maps each relocated name back to the entry of the artifact and rewrites that class
+     * only. Nothing is written to the lib folder, and the built-in engine is always used.
+     * As with {@link #ownClassLoader(boolean)}, use {@link #getClassLoader()} to load the
+     * relocated classes.
+     * (Default to false)
+     *
+     * @param lazy true to relocate the classes when they are loaded
+     * @return instance of DMRelocator
+     */
+    public DMRelocator lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    /**
+     * Add the dependencies of the artifacts, and their own dependencies, read from their
+     * POM files.
+     * <p>
+     * The compile and runtime dependencies are resolved level by level: the POM files of
+     * a level are downloaded concurrently, and kept in the cache folder. When several
+     * versions of an artifact are found, the nearest one wins, as with maven: the added
+     * artifacts first, then the dependencies in the order they are declared. Optional
+     * dependencies, dependencies with a classifier, and exclusions are ignored like maven
+     * does. The dependencies are relocated with the same relocations as the artifacts.
+     * (Default to false)
+     *
+     * @param transitive true to add the dependencies of the artifacts
+     * @return instance of DMRelocator
+     */
+    public DMRelocator transitive(boolean transitive) {
+        this.transitive = transitive;
+        return this;
+    }
+
+    /**
+     * Record the resolved artifacts in a lock manifest, and reuse them while the configuration
+     * does not change.
+     * <p>
+     * After a successful relocation, the file {@value LockManifest#FILE_NAME} of the lib folder
+     * records the configuration and, for each artifact, its resolved version (with the
+     * timestamped name of snapshots), its sha1 hash value, its repository and its relocated
+     * file. When the configuration matches the manifest and the relocated files are unchanged,
+     * {@link #relocate()} loads them without any network request nor hash computation: the
+     * latest snapshot versions are only resolved again after {@link #refresh()}.
+     * (Default to false)
+     *
+     * @param locked true to use a lock manifest
+     * @return instance of DMRelocator
+     */
+    public DMRelocator locked(boolean locked) {
+        this.locked = locked;
+        return this;
+    }
+
+    /**
+     * Ignore the lock manifest on the next call to {@link #relocate()}: the artifacts are
+     * resolved, verified and relocated as usual, then the lock manifest is updated.
+     *
+     * @return instance of DMRelocator
+     */
+    public DMRelocator refresh() {
+        this.refresh = true;
+        return this;
+    }
+
+    /**
+     * Maintain a class data sharing (AppCDS) archive of the relocated artifacts (JDK 13+).
+     * <p>
+     * After each relocation, the file {@value ClassDataSharing#OPTIONS_FILE_NAME} of the lib
+     * folder is updated with the JVM options which create, then use, an archive of the
+     * classes loaded by the JVM. The archive is named after the relocated artifacts, so a
+     * new one is created when an artifact changes. The options only take effect when the
+     * JVM is started with them: {@code java @libs/relocated/dmrelocator-cds.options ...}
+     * (Default to false)
+     *
+     * @param classDataSharing true to maintain the class data sharing options
+     * @return instance of DMRelocator
+     */
+    public DMRelocator classDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+        return this;
+    }
+
+    /**
+     * Run the download phase on virtual threads when the JVM supports them (JDK 21+).
+     * Platform threads are used otherwise.
+     * (Default to false)
+     *
+     * @param virtual true to use virtual threads
+     * @return instance of DMRelocator
+     */
+    public DMRelocator virtualThreads(boolean virtual) {
+        this.virtualThreads = virtual;
+        return this;
+    }
+
+    /**
+     * Number of repositories probed at the same time when looking for an artifact
+     * <p>
+     * Repositories are still used in the order they have been added: an artifact
+     * found in a repository is only downloaded from it once all the previous
+     * repositories have answered that they don't host it.
+     * (Default to 1, repositories are probed one after another)
+     *
+     * @param repositories number of repositories to probe at the same time,
+     *                     {@link Integer#MAX_VALUE} to probe all of them
+     * @return instance of DMRelocator
+     */
+    public DMRelocator hedgedResolution(int repositories) {
+        if (repositories < 1) {
+            throw new IllegalArgumentException("repositories must be greater than 0.");
+        }
+        this.hedgedResolution = repositories;
+        return this;
+    }
+
+    /**
+     * How long a repository which does not host an artifact is skipped when looking for it
+     * <p>
+     * The repository hosting each artifact is remembered in the cache folder, and used
+     * first the next time the artifact is resolved. Repositories answering that they don't
+     * host an artifact are skipped for this duration, unless no other repository is left
+     * to probe: an artifact published meanwhile is then still found.
+     * (Default to 0, repositories not hosting an artifact are not remembered)
+     *
+     * @param ttl  duration, 0 to always probe all the repositories
+     * @param unit unit of the duration
+     * @return instance of DMRelocator
+     */
+    public DMRelocator resolutionCacheTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl cannot be negative.");
+        }
+        this.resolutionCacheTtl = unit.toMillis(ttl);
+        return this;
+    }
+
+    /**
+     * Forget the repositories hosting, or not hosting, an artifact
+     *
+     * @param artifact artifact to forget, or null to forget all the artifacts
+     * @return instance of DMRelocator
+     * @throws IOException if the resolution cache cannot be written
+     */
+    public DMRelocator invalidateResolutions(Artifact artifact) throws IOException {
+        ResolutionCache cache = new ResolutionCache(cacheDir);
+        if (artifact != null) {
+            cache.invalidate(artifact);
+        } else {
+            cache.clear();
+        }
+        cache.save();
+        return this;
+    }
+
+    /**
+     * HTTP client used to download files
+     * (Default to {@link Transport#pooled()})
+     *
+     * @param transport HTTP client, for example {@link Transport#http2()}
+     * @return instance of DMRelocator
+     */
+    public DMRelocator transport(Transport transport) {
+        this.transport = requireNonNull(transport, "transport cannot be null");
+        return this;
+    }
+
     public DMRelocator logger(Consumer<String> onInfo) {
         this.logger = onInfo;
         return this;
@@ -248,39 +610,244 @@ public class DMRelocator {
         return relocations;
     }
 
+    /**
+     * @return the class loader the artifacts are added to: the DMRelocator class loader if
+     * one is used, else the class loader
+     */
+    public synchronized ClassLoader getClassLoader() {
+        return libraryClassLoader != null ? libraryClassLoader : classLoader;
+    }
+
+    /**
+     * Add a jar file, or a folder, to the class loader
+     *
+     * @param file jar file or folder
+     */
+    private synchronized void addToClassLoader(File file) {
+        if (libraryClassLoader == null && !ownClassLoader) {
+            if (UrlClassLoader.canAddTo(classLoader)) {
+                UrlClassLoader.addToClassLoader(classLoader, file);
+                return;
+            }
+            // The classes of the class loader cannot see the artifacts
+            logger.accept("Warning: the artifacts cannot be added to the class loader: " + UrlClassLoader.whyNotAddTo(classLoader)
+                    + ". They are loaded by a child class loader instead, load their classes through getClassLoader()");
+        }
+        addToLibraryClassLoader(file, null);
+    }
+
+    /**
+     * Add a jar file, or a folder, to the DMRelocator class loader
+     *
+     * @param file  jar file or folder
+     * @param rules rules to relocate its classes with when they are loaded, or null if already relocated
+     */
+    private synchronized void addToLibraryClassLoader(File file, RelocationRules rules) {
+        if (libraryClassLoader == null) {
+            libraryClassLoader = new LibraryClassLoader(classLoader);
+        }
+        for (Relocation relocation : relocations) {
+            libraryClassLoader.addLocalPackage(relocation.relocatedPattern);
+        }
+        libraryClassLoader.addLibrary(file, rules);
+    }
+
+    /**
+     * Close the jar files opened by the DMRelocator class loader
+     * <p>
+     * The classes of the artifacts cannot be loaded from the class loader once closed.
+     */
+    public synchronized void close() throws IOException {
+        if (libraryClassLoader != null) {
+            libraryClassLoader.close();
+            libraryClassLoader = null;
+        }
+    }
+
     /**
      * Download artifacts and relocate them
      */
     public DMRelocator relocate() throws IOException {
-        // Create downloader
-        Downloader downloader = new Downloader(this);
+        // Relocation rules, shared by all the artifacts
+        RelocationRules rules = new RelocationRules(relocations);
+        // Lock manifest, recording the resolved artifacts for this configuration
+        LockManifest lockManifest = locked ? new LockManifest(libDir.toAbsolutePath()) : null;
+        String configuration = locked ? configuration(rules) : null;
+
+        // Load the artifacts of the lock manifest
+        List<File> files = lockManifest != null && !refresh ? lockManifest.files(configuration, artifacts) : null;
+        if (files != null) {
+            for (File file : files) {
+                if (lazy) {
+                    addToLibraryClassLoader(file, rules);
+                } else {
+                    addToClassLoader(file);
+                }
+            }
+            updateClassDataSharing(files);
+            return this;
+        }
+        refresh = false;
+
+        // Download DMRelocator dependencies (asm, asm-commons and jar-relocator, used by the jar-relocator engine)
+        // and artifacts
+        try (Downloader downloader = new Downloader(this); Relocator relocator = new Relocator(this, downloader)) {
+            // Artifacts and their dependencies
+            List<Artifact> artifacts = transitive ? new DependencyResolver(this, downloader).resolve(this.artifacts) : this.artifacts;
+
+            if (lazy) {
+                downloader.downloadAll(artifacts, repositories, cacheDir);
+
+                // Classes are relocated by the class loader
+                files = new ArrayList<>();
+                for (Artifact artifact : artifacts) {
+                    File file = cacheDir.resolve(artifact.toPath(cacheDir)).toFile();
+                    addToLibraryClassLoader(file, rules);
+                    files.add(file);
+                }
+            } else {
+                List<Artifact> downloads = new LinkedList<>();
+                if (engine == Engine.JAR_RELOCATOR) {
+                    downloads.addAll(Arrays.asList(asmArtifact, asmCommonsArtifact, jarRelocatorArtifact));
+                }
+                if (pipelined) {
+                    // DMRelocator dependencies are needed by the first relocation
+                    downloader.downloadAll(downloads, repositories, cacheDir);
+                    injectDependencies();
+                    files = pipeline(downloader, relocator, artifacts, rules);
+                } else {
+                    downloads.addAll(artifacts);
+                    downloader.downloadAll(downloads, repositories, cacheDir);
+
+                    // Inject DMRelocator dependencies
+                    injectDependencies();
+
+                    // Relocate dependencies
+                    files = relocator.relocateAll(artifacts, rules, cacheDir, libDir);
+
+                    // Inject dependencies, in the order they were added
+                    for (File file : files) {
+                        addToClassLoader(file);
+                    }
+                }
+            }
 
-        // Download DMRelocator dependencies
-        // (asm, asm-commons and jar-relocator)
-        downloader.download(asmArtifact, repositories, cacheDir);
-        downloader.download(asmCommonsArtifact, repositories, cacheDir);
-        downloader.download(jarRelocatorArtifact, repositories, cacheDir);
+            // Record the resolved artifacts
+            if (lockManifest != null) {
+                for (int i = 0; i < artifacts.size(); i++) {
+                    Artifact artifact = artifacts.get(i);
+                    File cached = artifact.toFile(cacheDir);
+                    Repository repository = downloader.resolutionCache(cacheDir).repository(artifact, repositories);
+                    String source = artifact.url() != null ? artifact.url().toString() : repository != null ? repository.toString() : "";
+                    lockManifest.put(artifact, downloader.hashManifest(cacheDir).sha1(cached), source, files.get(i));
+                }
+                lockManifest.save(configuration, artifacts);
+            }
+        }
+        updateClassDataSharing(files);
+
+        return this;
+    }
 
-        // Download artifacts
+    /**
+     * @return a description of everything the resolved and relocated artifacts depend on
+     */
+    private String configuration(RelocationRules rules) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION).append(' ').append(engine).append(' ').append(outputFormat).append(' ').append(lazy).append(' ').append(transitive).append('\n');
+        if (engine == Engine.JAR_RELOCATOR) {
+            builder.append(jarRelocatorArtifact.version).append(' ').append(asmArtifact.version).append(' ').append(asmCommonsArtifact.version).append('\n');
+        }
+        builder.append(cacheDir.toAbsolutePath()).append('\n');
+        for (Repository repository : repositories) {
+            builder.append(repository).append('\n');
+        }
         for (Artifact artifact : artifacts) {
-            downloader.download(artifact, repositories, cacheDir);
+            builder.append(artifact).append(' ').append(artifact.name()).append(' ').append(artifact.url()).append(' ').append(artifact.sha1()).append('\n');
         }
+        builder.append(rules.describe());
+        return builder.toString();
+    }
 
-        // Inject DMRelocator dependencies
-        // (asm, asm-commons and jar-relocator)
-        UrlClassLoader.addToClassLoader(classLoader, asmArtifact.toFile(cacheDir));
-        UrlClassLoader.addToClassLoader(classLoader, asmCommonsArtifact.toFile(cacheDir));
-        UrlClassLoader.addToClassLoader(classLoader, jarRelocatorArtifact.toFile(cacheDir));
+    /**
+     * Update the class data sharing options, if enabled
+     *
+     * @param files relocated artifacts
+     */
+    private void updateClassDataSharing(List<File> files) {
+        if (!classDataSharing) {
+            return;
+        }
+        if (!ClassDataSharing.isSupported()) {
+            logger.accept("Class data sharing of the relocated artifacts needs Java 13 or later");
+            return;
+        }
+        try {
+            if (ClassDataSharing.update(libDir, files)) {
+                logger.accept("Class data sharing options updated, start the JVM with @" + libDir.resolve(ClassDataSharing.OPTIONS_FILE_NAME));
+            }
+        } catch (IOException e) {
+            logger.accept("Could not update the class data sharing options: " + e.getMessage());
+        }
+    }
 
-        // Create relocator
-        Relocator relocator = new Relocator(this);
+    /**
+     * Download, relocate and inject artifacts as a pipeline
+     * <p>
+     * Each artifact is relocated as soon as it is downloaded (and verified). Each relocated
+     * artifact is injected as soon as all the artifacts added before it are injected.
+     *
+     * @param downloader downloader to use
+     * @param relocator  relocator to use
+     * @param artifacts  artifacts to download and relocate
+     * @param rules      relocation rules
+     * @return the relocated artifacts
+     */
+    private List<File> pipeline(Downloader downloader, Relocator relocator, List<Artifact> artifacts, RelocationRules rules) {
+        int downloads = Math.max(1, Math.min(downloadThreads, artifacts.size()));
+        int relocations = Math.max(1, Math.min(relocationThreads, artifacts.size()));
+        ExecutorService downloadExecutor = Workers.newPool("download", downloads, virtualThreads);
+        // When the relocation queue is full, the download threads relocate the artifacts
+        // themselves, which stops them from downloading more artifacts
+        ExecutorService relocateExecutor = Workers.newBoundedPool("relocate", relocations, relocations);
+        try {
+            Map<Artifact, Future<File>> futures = new LinkedHashMap<>();
+            for (Artifact artifact : artifacts) {
+                futures.put(artifact, CompletableFuture
+                        .runAsync(() -> {
+                            try {
+                                downloader.download(artifact, repositories, cacheDir);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        }, downloadExecutor)
+                        .thenApplyAsync(ignored -> relocator.relocate(artifact, rules, cacheDir, libDir), relocateExecutor));
+            }
 
-        // Relocate and inject dependencies
-        for (Artifact artifact : artifacts) {
-            relocator.relocate(classLoader, artifact, relocations, cacheDir, libDir);
+            // Inject dependencies, in the order they were added
+            List<File> files = new ArrayList<>();
+            Workers.getAll(futures, "download and relocate", file -> {
+                addToClassLoader(file);
+                files.add(file);
+            });
+            return files;
+        } finally {
+            downloadExecutor.shutdownNow();
+            relocateExecutor.shutdownNow();
         }
+    }
 
-        return this;
+    /**
+     * Inject DMRelocator dependencies
+     * (asm, asm-commons and jar-relocator)
+     */
+    private void injectDependencies() {
+        if (engine != Engine.JAR_RELOCATOR) {
+            return;
+        }
+        addToClassLoader(asmArtifact.toFile(cacheDir));
+        addToClassLoader(asmCommonsArtifact.toFile(cacheDir));
+        addToClassLoader(jarRelocatorArtifact.toFile(cacheDir));
     }
 
 
@@ -404,35 +971,59 @@ public class DMRelocator {
             return toPath().toFile();
         }
 
-        URL getBaseUrl(URL root) {
+        /**
+         * @return the path of the folder of the artifact in a repository, with the version url encoded
+         */
+        String repositoryPath() {
             try {
-                URI uri = root.toURI();
-                String path = String.join("/"
-                        , uri.getPath()
+                return String.join("/"
                         , groupId.replace(".", "/")
-                        , artifactId.replace(".", "/")
+                        , artifactId
                         , URLEncoder.encode(version, "UTF-8")
                 );
+            } catch (UnsupportedEncodingException e) {
+                throw new RelocatorException("Cannot create base url for : " + this.toString(), e);
+            }
+        }
+
+        URL getBaseUrl(URL root) {
+            try {
+                URI uri = root.toURI();
+                String path = uri.getRawPath() + "/" + repositoryPath();
                 return uri.resolve(path.replace("//", "/")).toURL();
-            } catch (MalformedURLException | UnsupportedEncodingException | URISyntaxException e) {
+            } catch (MalformedURLException | URISyntaxException e) {
                 throw new RelocatorException("Cannot create base url for : " + this.toString(), e);
             }
         }
 
         URL getArtifactUrl(URL root) {
+            return getArtifactUrl(root, name());
+        }
+
+        URL getArtifactUrl(URL root, String name) {
             try {
                 URI uri = getBaseUrl(root).toURI();
-                String path = uri.getPath() + "/" + URLEncoder.encode(name(), "UTF-8") + ".jar";
+                String path = uri.getRawPath() + "/" + URLEncoder.encode(name, "UTF-8") + ".jar";
                 return uri.resolve(path.replace("//", "/")).toURL();
             } catch (MalformedURLException | URISyntaxException | UnsupportedEncodingException e) {
                 throw new RelocatorException("Cannot create artifact base url for : " + this.toString(), e);
             }
         }
 
+        URL getPomUrl(URL root, String name) {
+            try {
+                URI uri = getBaseUrl(root).toURI();
+                String path = uri.getRawPath() + "/" + URLEncoder.encode(name, "UTF-8") + ".pom";
+                return uri.resolve(path.replace("//", "/")).toURL();
+            } catch (MalformedURLException | URISyntaxException | UnsupportedEncodingException e) {
+                throw new RelocatorException("Cannot create pom url for : " + this.toString(), e);
+            }
+        }
+
         URL getMetaDataUrl(URL root) {
             try {
                 URI uri = getBaseUrl(root).toURI();
-                String path = uri.getPath() + "/maven-metadata.xml";
+                String path = uri.getRawPath() + "/maven-metadata.xml";
                 return uri.resolve(path.replace("//", "/")).toURL();
             } catch (MalformedURLException | URISyntaxException e) {
                 throw new RelocatorException("Cannot create maven-metadata base url for : " + this.toString(), e);
@@ -448,6 +1039,17 @@ public class DMRelocator {
                     .toFile();
         }
 
+        File getMetaDataFile(Path root, Repository repository) {
+            String id = repository.name() != null ? repository.name() : repository.toString();
+            return getMetaDataFile(root).toPath()
+                    .resolveSibling("maven-metadata-" + id.replaceAll("[^A-Za-z0-9._-]", "_") + ".xml")
+                    .toFile();
+        }
+
+        boolean isSnapshot() {
+            return version.endsWith("-SNAPSHOT");
+        }
+
         public String toString() {
             return groupId + ":" + artifactId + ":" + version;
         }
@@ -541,16 +1143,43 @@ public class DMRelocator {
 
     /**
      * Relocation rule
+     * <p>
+     * Includes and excludes are class name patterns, like the ones of the maven-shade-plugin:
+     * '*' matches any part of a name, '**' matches any number of packages (com.google.gson.**).
+     * When includes are set, only the matching classes are relocated.
      */
     public static class Relocation {
         private final String pattern;
         private final String relocatedPattern;
+        // Class name patterns
+        private final Set<String> includes = new LinkedHashSet<>();
+        private final Set<String> excludes = new LinkedHashSet<>();
 
         public Relocation(String pattern, String relocatedPattern) {
             this.pattern = pattern;
             this.relocatedPattern = relocatedPattern;
         }
 
+        /**
+         * @param includes class name patterns to relocate
+         */
+        public Relocation include(String... includes) {
+            for (String include : includes) {
+                this.includes.add(requireNonNull(include, "include cannot be null"));
+            }
+            return this;
+        }
+
+        /**
+         * @param excludes class name patterns not to relocate
+         */
+        public Relocation exclude(String... excludes) {
+            for (String exclude : excludes) {
+                this.excludes.add(requireNonNull(exclude, "exclude cannot be null"));
+            }
+            return this;
+        }
+
         public String pattern() {
             return pattern;
         }
@@ -558,19 +1187,76 @@ public class DMRelocator {
         public String getRelocatedPattern() {
             return relocatedPattern;
         }
+
+        public Set<String> includes() {
+            return includes;
+        }
+
+        public Set<String> excludes() {
+            return excludes;
+        }
     }
 
 
     /**
-     * Download files (jar, pom, ...) from urls
+     * Engine used to relocate the artifacts
      */
-    static class Downloader {
-
-        //
-        private final DMRelocator dmRelocator;
-        private Proxy proxy;
-
+    public enum Engine {
+        /**
+         * jar-relocator, which rewrites the classes with ASM.
+         * asm, asm-commons and jar-relocator are downloaded and added to the class loader.
+         */
+        JAR_RELOCATOR,
+        /**
+         * Built-in engine, which rewrites the class names directly in the constant pool of the classes.
+         * Nothing else is downloaded.
+         */
+        BUILT_IN
+    }
+
+
+    /**
+     * Format of the relocated artifacts
+     */
+    public enum OutputFormat {
+        /**
+         * Compressed jar file
+         */
+        JAR,
+        /**
+         * Uncompressed jar file: larger, but classes are loaded without being inflated
+         */
+        STORED_JAR,
+        /**
+         * Exploded jar: a folder containing the classes and resources as files, without zip index
+         */
+        DIRECTORY
+    }
+
+
+    /**
+     * Download files (jar, pom, ...) from urls
+     */
+    static class Downloader implements Closeable {
+
+        //
+        private final DMRelocator dmRelocator;
+        // Executor used by hedged resolution, and to download the checksum files
+        private ExecutorService probeExecutor;
+        // Hash manifests of the cache folders
+        private final Map<Path, HashManifest> hashManifests = new ConcurrentHashMap<>();
+        // Resolution caches of the cache folders
+        private final Map<Path, ResolutionCache> resolutionCaches = new ConcurrentHashMap<>();
+
         static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.7 (KHTML, like Gecko) Chrome/16.0.912.75 Safari/535.7";
+        // Extension of the files being downloaded
+        static final String PARTIAL_EXTENSION = ".part";
+        // Size of the buffer used to download files
+        static final int BUFFER_SIZE = 64 * 1024;
+        // Number of attempts to download a file
+        static final int MAX_ATTEMPTS = 3;
+        // HTTP Status-Code 416: Range Not Satisfiable.
+        static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
         public Downloader(DMRelocator dmRelocator) {
             requireNonNull(dmRelocator, "dmRelocator cannot be null");
@@ -592,10 +1278,13 @@ public class DMRelocator {
             makeDir(artifact.toFile(output).getParentFile().toPath());
 
             // The file already exist
+            // (downloaded files are verified while being downloaded)
+            boolean downloaded = false;
             if (!artifact.toFile(output).exists()) {
+                downloaded = true;
                 // Download artifact from url
                 if (artifact.url() != null) {
-                    downloadFile(artifact.url(), artifact.toFile(output));
+                    downloadArtifact(artifact, artifact.url(), output);
                 }
                 // Download artifact from repositories
                 else if (repositories != null) {
@@ -608,13 +1297,48 @@ public class DMRelocator {
             }
 
             // Check sha1 hash value
-            if (!dmRelocator.ignoreHash
+            // (the hash value of cached files is only computed if the file has changed)
+            if (!downloaded && !dmRelocator.ignoreHash
                     && artifact.sha1() != null && !artifact.sha1().isEmpty()
-                    && !checkHash(artifact.toFile(output), artifact.sha1())) {
+                    && !artifact.sha1().equalsIgnoreCase(hashManifest(output).sha1(artifact.toFile(output)))) {
                 throw new RelocatorException("Artifact hash mismatch for file : " + artifact.toFile(output).getName());
             }
         }
 
+        /**
+         * Download a list of artifacts concurrently
+         * <p>
+         * Every artifact is downloaded, even if some of them fail.
+         * All the failures are then reported in a single exception.
+         *
+         * @param artifacts    artifacts to download
+         * @param repositories List of repositories to download the artifacts from
+         * @param output       Where to download the artifacts
+         * @throws RelocatorException if at least one artifact could not be downloaded
+         */
+        void downloadAll(List<Artifact> artifacts, List<Repository> repositories, Path output) {
+            requireNonNull(artifacts, "artifacts cannot be null.");
+            requireNonNull(output, "output cannot be null.");
+
+            int threads = Math.max(1, Math.min(dmRelocator.downloadThreads, artifacts.size()));
+            ExecutorService executor = Workers.newPool("download", threads, dmRelocator.virtualThreads);
+            try {
+                // Start all downloads
+                Map<Artifact, Future<Void>> futures = new LinkedHashMap<>();
+                for (Artifact artifact : artifacts) {
+                    futures.put(artifact, executor.submit(() -> {
+                        download(artifact, repositories, output);
+                        return null;
+                    }));
+                }
+
+                // Wait for all downloads
+                Workers.getAll(futures, "download");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
         /**
          * Create the directory if not exist
          *
@@ -674,455 +1398,5611 @@ public class DMRelocator {
          * @throws IOException If the file cannot be downloaded
          */
         void downloadFile(URL url, File output) throws IOException {
-            dmRelocator.logger.accept("Downloading file: " + url);
+            downloadFile(url, openDownload(url, output), output, null);
+        }
 
-            try (
-                    ReadableByteChannel readableByteChannel = Channels.newChannel(openStream(url));
-                    FileOutputStream fileOutputStream = new FileOutputStream(output)
-            ) {
-                fileOutputStream.getChannel().transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
-                requireNonNull(fileOutputStream).close();
-                requireNonNull(readableByteChannel).close();
-            }
+        /**
+         * Download file from a response already received
+         * <p>
+         * The response body is streamed, no other request is sent.
+         *
+         * @param response Response to read the file from
+         * @param output   output file
+         * @throws IOException If the file cannot be downloaded
+         */
+        void downloadFile(Response response, File output) throws IOException {
+            downloadFile(response.url(), response, output, null);
         }
 
         /**
-         * Download artifact from repository list
+         * Download an artifact file
+         * <p>
+         * The checksum file of the repository, if enabled, is requested together with the artifact file.
          *
-         * @param artifact     artifact to download
-         * @param repositories repositories to look for the artifact file
-         * @param output       output file
+         * @param artifact artifact to download
+         * @param url      File url
+         * @param output   Where to download the artifact
+         * @throws IOException If the file cannot be downloaded
          */
-        void downloadFile(Artifact artifact, List<Repository> repositories, Path output) {
-            requireNonNull(artifact, "artifact cannot be null.");
-            requireNonNull(repositories, "repositories cannot be null.");
-            requireNonNull(output, "file output be null.");
+        void downloadArtifact(Artifact artifact, URL url, Path output) throws IOException {
+            Future<String[]> checksum = requestChecksum(url);
+            downloadArtifact(artifact, url, checksum, openDownload(url, artifact.toFile(output)), output);
+        }
 
-            // Will be updated when the artifact is found
-            boolean found = false;
+        /**
+         * Download an artifact file from a response already received
+         * <p>
+         * The file is verified while being downloaded, against the artifact sha1 hash value
+         * and the checksum files of the repository if enabled.
+         *
+         * @param artifact artifact to download
+         * @param url      File url
+         * @param checksum checksum file being downloaded, see {@link #requestChecksum(URL)}
+         * @param response Response to read the file from
+         * @param output   Where to download the artifact
+         * @throws IOException If the file cannot be downloaded
+         */
+        void downloadArtifact(Artifact artifact, URL url, Future<String[]> checksum, Response response, Path output) throws IOException {
+            File file = artifact.toFile(output);
+            Checksums checksums = downloadFile(url, response, file, c -> verify(artifact, url, c, checksum));
+            // Remember the hash value of the downloaded file
+            hashManifest(output).put(file, checksums.sha1());
+        }
 
-            //
-            HttpURLConnection conn;
-            int status;
+        /**
+         * Download file from a response already received
+         * <p>
+         * The file is written next to the output file, then moved to the output file
+         * once complete and verified. If the transfer is interrupted, it is resumed
+         * from where it stopped using a range request.
+         *
+         * @param url      File url
+         * @param response Response to read the file from
+         * @param output   output file
+         * @param verifier Verify the file checksums before publishing it, may be null
+         * @return the checksums of the downloaded file
+         * @throws IOException If the file cannot be downloaded
+         */
+        Checksums downloadFile(URL url, Response response, File output, Consumer<Checksums> verifier) throws IOException {
+            dmRelocator.logger.accept("Downloading file: " + url);
 
-            // Loop throw all repositories
-            for (Repository repository : repositories) {
+            File partial = partialFile(output);
+            Checksums checksums;
+            for (int attempt = 1; ; attempt++) {
+                long length = partial.length();
                 try {
-                    // Don't check in the repository if the artifact is already found
-                    if (found) continue;
-
-                    // Firstly, try to download the file corresponding to the artifact
-                    // --------------------------------------------------------------
-                    URL artifactUrl = artifact.getArtifactUrl(repository.url());
-                    // Create connection and check the response
-                    conn = openConnection(artifactUrl);
-                    status = conn.getResponseCode();
-                    // The file is present in the repository
-                    if ((status >= 200 && status < 300) || status == 304) {
-                        downloadFile(artifactUrl, artifact.toFile(output));
-                        found = Files.exists(artifact.toPath(output));
-                        continue;
+                    if (attempt > 1) {
+                        dmRelocator.logger.accept("Resuming download of file: " + url + " at byte " + length);
+                        response = openDownload(url, output);
                     }
-
-                    // If the file does not exist, try to download the maven-metadata.xml file
-                    // -----------------------------------------------------------------------
-                    // Create meta data url from repository
-                    URL metaDataUrl = artifact.getMetaDataUrl(repository.url());
-                    // meta data file to store
-                    File metaDataFile = artifact.getMetaDataFile(output);
-                    // Create connection and check the response
-                    conn = openConnection(metaDataUrl);
-                    status = conn.getResponseCode();
-                    // The file is present in the repository
-                    if ((status >= 200 && status < 300) || status == 304) {
-                        // Download MetaData.xml from repository
-                        downloadFile(metaDataUrl, metaDataFile);
-                        // Use MetaDataHelper to get the latest jar version
-                        MetaDataHelper metaDataHelper = new MetaDataHelper(metaDataFile);
-                        if (!metaDataHelper.isValid()) {
-                            continue;
-                        }
-                        // Update artifact
-                        artifact.name(artifact.artifactId() + "-" + metaDataHelper.getLatest());
-                        artifactUrl = artifact.getArtifactUrl(repository.url());
-                        // Download artifact
-                        if (!artifact.toFile(output).exists()) {
-                            downloadFile(artifactUrl, artifact.toFile(output));
-                        }
-                        found = Files.exists(artifact.toPath(output));
+                    checksums = transfer(response, partial, verifier != null && dmRelocator.verifyChecksums);
+                    break;
+                } catch (IOException e) {
+                    response.abort();
+                    // Only retry if the previous attempt made some progress
+                    if (attempt >= MAX_ATTEMPTS || partial.length() <= length) {
+                        throw e;
                     }
-                } catch (Exception ignored) {
-                    // Exception ignored
                 }
             }
 
-            if (!found) {
-                throw new RelocatorException("Could not download artifact '" + artifact.toString() + "' from any of the repositories");
+            // Verify the downloaded file
+            if (verifier != null) {
+                try {
+                    verifier.accept(checksums);
+                } catch (RuntimeException e) {
+                    Files.deleteIfExists(partial.toPath());
+                    throw e;
+                }
+            }
+
+            // Publish the downloaded file
+            try {
+                Files.move(partial.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+            return checksums;
         }
 
         /**
-         * Get the proxy used by the JVM
+         * Write the response body into the partial file
+         * <p>
+         * The body is appended to the partial file if the server answered a range request,
+         * otherwise the partial file is replaced.
+         *
+         * @param response Response to read the file from
+         * @param partial  partial file
+         * @param sha256   also compute the sha256 hash value
+         * @return the checksums of the whole partial file
+         * @throws IOException If the file cannot be downloaded
          */
-        Proxy getProxy() {
-
-            // Return already foud proxy
-            if (proxy != null) {
-                return proxy;
+        Checksums transfer(Response response, File partial, boolean sha256) throws IOException {
+            int status = response.status();
+            if (status < 200 || status >= 300) {
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + response.url());
+            }
+            boolean resume = status == HttpURLConnection.HTTP_PARTIAL;
+            if (resume && contentRangeStart(response) != partial.length()) {
+                Files.deleteIfExists(partial.toPath());
+                throw new IOException("Unexpected content range for file : " + partial.getName());
             }
 
-            // Try to find the first proxy used by the JVM
-            try {
-                ProxySelector selector = ProxySelector.getDefault();
-                List<Proxy> proxyList = selector.select(new URI("http://foo/bar"));
+            Checksums checksums = new Checksums(sha256);
+            try (
+                    InputStream inputStream = response.body();
+                    FileChannel fileChannel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            ) {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int count;
+
+                // Hash the part already downloaded
+                if (resume) {
+                    while ((count = fileChannel.read(buffer)) != -1) {
+                        checksums.update(bytes, 0, count);
+                        buffer.clear();
+                    }
+                } else {
+                    fileChannel.truncate(0);
+                }
 
-                if (proxyList != null && !proxyList.isEmpty()) {
-                    proxy = proxyList.get(0);
-                    return proxy;
+                // Hash and write the downloaded bytes
+                while ((count = inputStream.read(bytes)) != -1) {
+                    checksums.update(bytes, 0, count);
+                    buffer.limit(count).position(0);
+                    while (buffer.hasRemaining()) {
+                        fileChannel.write(buffer);
+                    }
                 }
-            } catch (Exception ignored) {
-                // Exception ignored
             }
-            return null;
+            return checksums;
         }
 
-        HttpURLConnection openConnection(URL url) throws IOException {
-            Proxy p = getProxy();
-            final HttpURLConnection conn = (HttpURLConnection) (p != null ? url.openConnection(p) : url.openConnection());
-            conn.setRequestProperty("User-Agent", USER_AGENT);
-            conn.setInstanceFollowRedirects(true);
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            int status = conn.getResponseCode();
-            boolean redirect = status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER;
-
-            if (redirect) {
-                String newUrl = conn.getHeaderField("Location");
-                return openConnection(new URL(newUrl));
+        /**
+         * Verify the checksums of a downloaded artifact file
+         *
+         * @param artifact  downloaded artifact
+         * @param url       url the artifact file was downloaded from
+         * @param checksums checksums of the downloaded file
+         * @param checksum  checksum file being downloaded, null if not verified
+         * @throws RelocatorException if the file does not match its hash value
+         */
+        void verify(Artifact artifact, URL url, Checksums checksums, Future<String[]> checksum) {
+            if (dmRelocator.ignoreHash) {
+                return;
             }
 
-            return conn;
-        }
-
-        InputStream openStream(URL url) throws IOException {
-            HttpURLConnection connection = openConnection(url);
-            return connection.getInputStream();
-        }
-
-        static class MetaDataHelper {
-
-            private final Metadata metaData;
+            // Check sha1 hash value
+            if (artifact.sha1() != null && !artifact.sha1().isEmpty() && !artifact.sha1().equalsIgnoreCase(checksums.sha1())) {
+                throw new RelocatorException("Artifact hash mismatch for file : " + url);
+            }
 
-            public MetaDataHelper(File metaDataFile) {
+            // Check the checksum files of the repository
+            if (checksum != null) {
+                String[] value;
                 try {
-                    JAXBContext jaxbContext = JAXBContext.newInstance(Metadata.class);
-                    Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-                    this.metaData = (Metadata) jaxbUnmarshaller.unmarshal(metaDataFile);
+                    value = checksum.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RelocatorException("Interrupted while downloading the checksum file of : " + url, e);
+                } catch (ExecutionException e) {
+                    throw new RelocatorException("Cannot download the checksum file of : " + url, e.getCause());
                 }
-                catch(Exception e) {
-                    throw new RelocatorException(e);
+                if (value == null) {
+                    dmRelocator.logger.accept("No checksum file found for: " + url);
+                } else if (".sha1".equals(value[0]) ? !value[1].equalsIgnoreCase(checksums.sha1()) : !value[1].equalsIgnoreCase(checksums.sha256())) {
+                    throw new RelocatorException("Artifact " + value[0].substring(1) + " checksum mismatch for file : " + url);
                 }
             }
+        }
 
-            boolean isValid() {
-                return metaData != null && !metaData.groupId.isEmpty() && !metaData.artifactId.isEmpty() && !metaData.version.isEmpty();
+        /**
+         * Start downloading the checksum file of an artifact file, the .sha1 file or else the .sha256 file
+         *
+         * @param url url of the artifact file
+         * @return the extension and the value of the checksum, null if the repository provides no checksum file,
+         * or null if the checksum files are not verified
+         */
+        Future<String[]> requestChecksum(URL url) {
+            if (!dmRelocator.verifyChecksums || dmRelocator.ignoreHash) {
+                return null;
             }
-
-            String getLatest() {
-                for (SnapshotVersion snapshotVersion : metaData.getVersioning().getSnapshotVersions().getSnapshotVersion()) {
-                    if ((snapshotVersion.classifier == null || snapshotVersion.classifier.isEmpty()) && snapshotVersion.extension.equals("jar")) {
-                        return snapshotVersion.value;
+            return probeExecutor().submit(() -> {
+                for (String extension : new String[]{".sha1", ".sha256"}) {
+                    String value = fetchChecksum(url, extension);
+                    if (value != null) {
+                        return new String[]{extension, value};
                     }
                 }
-                return "";
+                return null;
+            });
+        }
+
+        /**
+         * Download a checksum file
+         *
+         * @param url       url of the file
+         * @param extension extension of the checksum file (.sha1 or .sha256)
+         * @return the checksum, or null if the repository does not provide the checksum file
+         */
+        String fetchChecksum(URL url, String extension) {
+            try (Response response = openConnection(new URL(url.toString() + extension))) {
+                int status = response.status();
+                if (status < 200 || status >= 300) {
+                    return null;
+                }
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.US_ASCII))) {
+                    // The checksum may be followed by the file name
+                    String line = reader.readLine();
+                    String[] values = line != null ? line.trim().split("\\s+") : new String[0];
+                    return values.length > 0 && !values[0].isEmpty() ? values[0] : null;
+                }
+            } catch (IOException ignored) {
+                return null;
             }
+        }
 
-            @XmlRootElement
-            static class Metadata {
-                private String groupId;
-                private String artifactId;
-                private String version;
-                private Versioning versioning;
+        /**
+         * @param output output file
+         * @return the file used while downloading the output file
+         */
+        static File partialFile(File output) {
+            return new File(output.getPath() + PARTIAL_EXTENSION);
+        }
 
-                public Metadata() {
+        /**
+         * @param response response to a range request
+         * @return the first byte position of the Content-Range header, -1 if not found
+         */
+        static long contentRangeStart(Response response) {
+            String range = response.header("Content-Range");
+            if (range != null && range.startsWith("bytes ") && range.indexOf('-') > 6) {
+                try {
+                    return Long.parseLong(range.substring(6, range.indexOf('-')).trim());
+                } catch (NumberFormatException ignored) {
+                    // Exception ignored
                 }
+            }
+            return -1;
+        }
 
-                public Metadata(String groupId, String artifactId, String version, Versioning versioning) {
-                    super();
-                    this.groupId = groupId;
-                    this.artifactId = artifactId;
-                    this.version = version;
-                    this.versioning = versioning;
-                }
+        /**
+         * Download artifact from repository list
+         * <p>
+         * Repositories are probed one after another, or a few at the same time when
+         * hedged resolution is enabled. In both cases, the first repository of the list
+         * hosting the artifact is the one used to download it.
+         *
+         * @param artifact     artifact to download
+         * @param repositories repositories to look for the artifact file
+         * @param output       output file
+         */
+        void downloadFile(Artifact artifact, List<Repository> repositories, Path output) throws IOException {
+            requireNonNull(artifact, "artifact cannot be null.");
+            requireNonNull(repositories, "repositories cannot be null.");
+            requireNonNull(output, "file output be null.");
 
-                @XmlElement
-                public String getGroupId() {
-                    return groupId;
-                }
+            // Find the repository hosting the artifact
+            Resolution resolution = resolve(artifact, repositories, output);
+            if (resolution == null) {
+                throw new RelocatorException("Could not download artifact '" + artifact.toString() + "' from any of the repositories");
+            }
 
-                public void setGroupId(String groupId) {
-                    this.groupId = groupId;
-                }
+            // Update artifact for snapshot versions
+            if (resolution.name != null) {
+                artifact.name(resolution.name);
+            }
 
-                @XmlElement
-                public String getArtifactId() {
-                    return artifactId;
-                }
+            // Download artifact
+            // (using the response to the probe when possible)
+            if (artifact.toFile(output).exists()) {
+                resolution.release();
+            } else if (resolution.response != null) {
+                downloadArtifact(artifact, resolution.url, requestChecksum(resolution.url), resolution.response, output);
+            } else {
+                downloadArtifact(artifact, resolution.url, output);
+            }
+        }
 
-                public void setArtifactId(String artifactId) {
-                    this.artifactId = artifactId;
+        /**
+         * Find the first repository, in the list order, hosting the artifact
+         * <p>
+         * Up to {@link DMRelocator#hedgedResolution(int)} repositories are probed at the same time.
+         * A probe which succeed is only used once all the repositories before it have failed,
+         * then the remaining probes are cancelled. Probes sent at the same time never resume
+         * the partial download of the artifact, only the accepted resolution does.
+         *
+         * @param artifact     artifact to resolve
+         * @param repositories repositories to look for the artifact file
+         * @param output       cache folder
+         * @return the resolution, or null if no repository host the artifact
+         */
+        Resolution resolve(Artifact artifact, List<Repository> repositories, Path output) {
+            List<Repository> remotes = new ArrayList<>(repositories.size());
+            repositories.stream().filter(Repository::isRemote).forEach(remotes::add);
+            ResolutionCache cache = resolutionCache(output);
+
+            // Try the repository which hosted the artifact last time
+            Repository known = cache.repository(artifact, remotes);
+            if (known != null) {
+                Probe probe = new Probe(artifact, known, output, true);
+                Resolution resolution = record(cache, probe, probe.call());
+                if (resolution != null) {
+                    return resolution;
                 }
+                cache.invalidate(artifact);
+                remotes.remove(known);
+            }
 
-                @XmlElement
-                public String getVersion() {
-                    return version;
-                }
+            // Skip the repositories known not to host the artifact
+            // (all of them are probed again if none is left)
+            List<Repository> candidates = new ArrayList<>(remotes);
+            candidates.removeIf(repository -> cache.isMissing(artifact, repository));
+            if (!candidates.isEmpty()) {
+                remotes = candidates;
+            }
 
-                public void setVersion(String version) {
-                    this.version = version;
+            // Sequential resolution
+            int window = Math.min(dmRelocator.hedgedResolution, remotes.size());
+            if (window <= 1) {
+                for (Repository repository : remotes) {
+                    Probe probe = new Probe(artifact, repository, output, true);
+                    Resolution resolution = record(cache, probe, probe.call());
+                    if (resolution != null) {
+                        return resolution;
+                    }
                 }
+                return null;
+            }
 
-                @XmlElement
-                public Versioning getVersioning() {
-                    return versioning;
+            // Hedged resolution
+            Deque<Probe> probes = new ArrayDeque<>(window);
+            Iterator<Repository> pending = remotes.iterator();
+            try {
+                while (probes.size() < window && pending.hasNext()) {
+                    probes.add(new Probe(artifact, pending.next(), output, false).start(probeExecutor()));
                 }
-
-                public void setVersioning(Versioning versioning) {
-                    this.versioning = versioning;
+                while (!probes.isEmpty()) {
+                    Probe probe = probes.poll();
+                    Resolution resolution = record(cache, probe, probe.get());
+                    if (resolution != null) {
+                        return resolution;
+                    }
+                    if (pending.hasNext()) {
+                        probes.add(new Probe(artifact, pending.next(), output, false).start(probeExecutor()));
+                    }
                 }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RelocatorException("Interrupted while resolving artifact '" + artifact.toString() + "'", e);
+            } finally {
+                probes.forEach(Probe::cancel);
             }
+        }
 
-            static class Versioning {
-                private String lastUpdated;
-                private SnapshotVersions snapshotVersions;
+        /**
+         * Record the result of a probe in the resolution cache
+         *
+         * @param cache      resolution cache
+         * @param probe      probe
+         * @param resolution result of the probe
+         * @return the result of the probe
+         */
+        private Resolution record(ResolutionCache cache, Probe probe, Resolution resolution) {
+            if (resolution != null) {
+                cache.found(probe.artifact, probe.repository);
+            } else if (probe.isMissing()) {
+                cache.missing(probe.artifact, probe.repository, dmRelocator.resolutionCacheTtl);
+            }
+            return resolution;
+        }
 
-                public Versioning() {
-                }
+        /**
+         * Resolution cache of a cache folder
+         * <p>
+         * The cache is loaded once, the first time it is needed, and saved when
+         * the downloader is closed.
+         *
+         * @param output cache folder
+         * @return the resolution cache
+         */
+        ResolutionCache resolutionCache(Path output) {
+            return resolutionCaches.computeIfAbsent(output.toAbsolutePath(), ResolutionCache::new);
+        }
 
-                public Versioning(String lastUpdated, SnapshotVersions snapshotVersions) {
-                    super();
-                    this.lastUpdated = lastUpdated;
-                    this.snapshotVersions = snapshotVersions;
-                }
+        /**
+         * Executor used to probe repositories at the same time
+         */
+        private synchronized ExecutorService probeExecutor() {
+            if (probeExecutor == null) {
+                probeExecutor = Executors.newCachedThreadPool(Workers.threadFactory("probe", dmRelocator.virtualThreads));
+            }
+            return probeExecutor;
+        }
 
-                @XmlElement
-                public String getLastUpdated() {
-                    return lastUpdated;
-                }
+        /**
+         * Hash manifest of a cache folder
+         * <p>
+         * The manifest is loaded once, the first time it is needed, and saved when
+         * the downloader is closed.
+         *
+         * @param output cache folder
+         * @return the hash manifest
+         */
+        HashManifest hashManifest(Path output) {
+            return hashManifests.computeIfAbsent(output.toAbsolutePath(), HashManifest::new);
+        }
 
-                public void setLastUpdated(String lastUpdated) {
-                    this.lastUpdated = lastUpdated;
+        /**
+         * Release the resources used by the downloader
+         */
+        @Override
+        public synchronized void close() {
+            if (probeExecutor != null) {
+                probeExecutor.shutdownNow();
+                probeExecutor = null;
+            }
+            for (HashManifest manifest : hashManifests.values()) {
+                try {
+                    manifest.save();
+                } catch (IOException e) {
+                    dmRelocator.logger.accept("Unable to save hash manifest: " + e.getMessage());
                 }
-
-                @XmlElement
-                public SnapshotVersions getSnapshotVersions() {
-                    return snapshotVersions;
+            }
+            hashManifests.clear();
+            for (ResolutionCache cache : resolutionCaches.values()) {
+                try {
+                    cache.save();
+                } catch (IOException e) {
+                    dmRelocator.logger.accept("Unable to save resolution cache: " + e.getMessage());
                 }
+            }
+            resolutionCaches.clear();
+        }
+
+        /**
+         * Repository hosting an artifact
+         */
+        static class Resolution {
+            // Repository hosting the artifact
+            final Repository repository;
+            // Url of the artifact file
+            final URL url;
+            // Resolved artifact name (snapshot versions only)
+            final String name;
+            // Response to the probe for the artifact file, if any
+            final Response response;
+
+            Resolution(Repository repository, URL url, String name, Response response) {
+                this.repository = repository;
+                this.url = url;
+                this.name = name;
+                this.response = response;
+            }
 
-                public void setSnapshotVersions(SnapshotVersions snapshotVersions) {
-                    this.snapshotVersions = snapshotVersions;
+            void release() {
+                if (response != null) {
+                    response.close();
                 }
             }
+        }
 
-            static class SnapshotVersions {
+        /**
+         * Look for an artifact in one repository
+         */
+        class Probe implements Callable<Resolution> {
+
+            private final Artifact artifact;
+            private final Repository repository;
+            private final Path output;
+            // Resume the partial download of the artifact file, only one probe may do so at a time
+            private final boolean resume;
+            // Response currently read by the probe
+            private volatile Response response;
+            private volatile boolean cancelled;
+            // Number of files the repository answered it does not have
+            private int missing = 0;
+            private Future<Resolution> future;
+
+            Probe(Artifact artifact, Repository repository, Path output, boolean resume) {
+                this.artifact = artifact;
+                this.repository = repository;
+                this.output = output;
+                this.resume = resume;
+            }
 
-                private List<SnapshotVersion> versions;
+            Probe start(ExecutorService executor) {
+                this.future = executor.submit(this);
+                return this;
+            }
 
-                public SnapshotVersions() {
+            Resolution get() throws InterruptedException {
+                try {
+                    return future.get();
+                } catch (ExecutionException | CancellationException e) {
+                    return null;
                 }
+            }
 
-                public SnapshotVersions(List<SnapshotVersion> versions) {
-                    super();
-                    this.versions = versions;
+            void cancel() {
+                cancelled = true;
+                if (future != null && !future.cancel(true) && future.isDone()) {
+                    // The probe answered, release its connection
+                    try {
+                        Resolution resolution = future.get();
+                        if (resolution != null) {
+                            resolution.release();
+                        }
+                    } catch (InterruptedException | ExecutionException | CancellationException ignored) {
+                        // Exception ignored
+                    }
                 }
-
-                @XmlElement
-                public List<SnapshotVersion> getSnapshotVersion() {
-                    return versions;
+                Response current = response;
+                if (current != null) {
+                    current.abort();
                 }
+            }
 
-                public void setSnapshotVersion(List<SnapshotVersion> snapshotVersions) {
-                    this.versions = snapshotVersions;
+            @Override
+            public Resolution call() {
+                try {
+                    // Snapshot versions are resolved using the maven-metadata.xml file,
+                    // others using the file corresponding to the artifact
+                    if (artifact.isSnapshot()) {
+                        Resolution resolution = probeMetaData();
+                        return resolution != null ? resolution : probeArtifact();
+                    } else {
+                        Resolution resolution = probeArtifact();
+                        return resolution != null ? resolution : probeMetaData();
+                    }
+                } catch (Exception ignored) {
+                    // Exception ignored
                 }
+                return null;
             }
 
-            static class SnapshotVersion {
-                private String classifier;
-                private String extension;
-                private String value;
-                private String updated;
-
-                public SnapshotVersion() {
+            /**
+             * Try to find the file corresponding to the artifact
+             */
+            private Resolution probeArtifact() throws IOException {
+                URL artifactUrl = artifact.getArtifactUrl(repository.url());
+                File file = artifact.toFile(output);
+                // The file is present in the repository
+                // (the probe resumes any partial download of the file if allowed to)
+                if (!isSuccess(artifactUrl, resume ? file : null, Collections.emptyMap())) {
+                    return null;
                 }
-
-                public SnapshotVersion(String classifier, String extension, String value, String updated) {
-                    super();
-                    this.classifier = classifier;
-                    this.extension = extension;
-                    this.value = value;
-                    this.updated = updated;
+                // The partial download is resumed once the resolution is accepted
+                if (!resume && partialFile(file).length() > 0) {
+                    response.abort();
+                    return new Resolution(repository, artifactUrl, null, null);
                 }
+                return new Resolution(repository, artifactUrl, null, response);
+            }
 
-                @XmlElement
-                public String getClassifier() {
-                    return classifier;
+            /**
+             * Try to find the latest version of the artifact using the maven-metadata.xml file
+             * <p>
+             * The metadata file is only downloaded if it has changed since the last time.
+             */
+            private Resolution probeMetaData() throws IOException {
+                // Create meta data url from repository
+                URL metaDataUrl = artifact.getMetaDataUrl(repository.url());
+                // meta data file to store
+                File metaDataFile = artifact.getMetaDataFile(output, repository);
+                // Validators of the stored meta data file
+                ResolutionCache cache = resolutionCache(output);
+                ResolutionCache.MetaData cached = metaDataFile.exists() ? cache.metaData(metaDataUrl) : null;
+                Map<String, String> headers = new HashMap<>();
+                if (cached != null && cached.etag != null) {
+                    headers.put("If-None-Match", cached.etag);
                 }
-
-                public void setClassifier(String classifier) {
-                    this.classifier = classifier;
+                if (cached != null && cached.lastModified != null) {
+                    headers.put("If-Modified-Since", cached.lastModified);
                 }
 
-                @XmlElement
-                public String getExtension() {
-                    return extension;
+                // The file is present in the repository
+                if (!isSuccess(metaDataUrl, null, headers)) {
+                    return null;
                 }
 
-                public void setExtension(String extension) {
-                    this.extension = extension;
+                String latest;
+                if (response.status() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    // The stored meta data file is up to date
+                    response.close();
+                    latest = cached.latest;
+                } else {
+                    // Download MetaData.xml from repository
+                    String etag = response.header("ETag");
+                    String lastModified = response.header("Last-Modified");
+                    downloadFile(response, metaDataFile);
+                    // Use MetaDataHelper to get the latest jar version
+                    MetaDataHelper metaDataHelper = new MetaDataHelper(metaDataFile);
+                    if (!metaDataHelper.isValid()) {
+                        return null;
+                    }
+                    latest = metaDataHelper.getLatest();
+                    cache.metaData(metaDataUrl, new ResolutionCache.MetaData(etag, lastModified, latest));
                 }
 
-                @XmlElement
-                public String getValue() {
-                    return value;
-                }
+                String name = artifact.artifactId() + "-" + latest;
+                return new Resolution(repository, artifact.getArtifactUrl(repository.url(), name), name, null);
+            }
 
-                public void setValue(String value) {
-                    this.value = value;
+            private boolean isSuccess(URL url, File file, Map<String, String> headers) throws IOException {
+                if (cancelled) {
+                    return false;
                 }
-
-                @XmlElement
-                public String getUpdated() {
-                    return updated;
+                response = file != null ? openDownload(url, file) : openConnection(url, 0, headers);
+                int status = response.status();
+                if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                    missing++;
                 }
-
-                public void setUpdated(String updated) {
-                    this.updated = updated;
+                if ((status >= 200 && status < 300) || status == 304) {
+                    return true;
                 }
+                // Release the connection so it can be reused
+                response.close();
+                return false;
             }
-        }
+
+            /**
+             * @return true if the repository answered it has neither the artifact file nor its metadata
+             */
+            boolean isMissing() {
+                return !cancelled && missing >= 2;
+            }
+        }
+
+        /**
+         * Send a request using the transport of DMRelocator
+         *
+         * @param url File url
+         * @return the response
+         */
+        Response openConnection(URL url) throws IOException {
+            return openConnection(url, 0, Collections.emptyMap());
+        }
+
+        /**
+         * Send a request to download a file, resuming its partial download if any
+         *
+         * @param url    File url
+         * @param output output file
+         * @return the response
+         */
+        Response openDownload(URL url, File output) throws IOException {
+            long offset = partialFile(output).length();
+            Response response = openConnection(url, offset, Collections.emptyMap());
+            // The partial file cannot be resumed
+            if (offset > 0 && response.status() == HTTP_RANGE_NOT_SATISFIABLE) {
+                response.close();
+                Files.deleteIfExists(partialFile(output).toPath());
+                response = openConnection(url, 0, Collections.emptyMap());
+            }
+            return response;
+        }
+
+        /**
+         * Send a request using the transport of DMRelocator
+         *
+         * @param url     File url
+         * @param offset  first byte to download
+         * @param headers additional request headers
+         * @return the response
+         */
+        Response openConnection(URL url, long offset, Map<String, String> headers) throws IOException {
+            Map<String, String> requestHeaders = new LinkedHashMap<>();
+            requestHeaders.put("User-Agent", USER_AGENT);
+            if (offset > 0) {
+                requestHeaders.put("Range", "bytes=" + offset + "-");
+            }
+            requestHeaders.putAll(headers);
+            return dmRelocator.transport.get(url, requestHeaders);
+        }
+
+        InputStream openStream(URL url) throws IOException {
+            return openConnection(url).body();
+        }
+
+        /**
+         * Read the latest snapshot version from a maven-metadata.xml file
+         * <p>
+         * The file is streamed, and the parsing stops as soon as the jar snapshot version is found.
+         */
+        static class MetaDataHelper {
+
+            private static final XMLInputFactory XML_INPUT_FACTORY;
+
+            static {
+                XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+                XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+                XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+                XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+            }
+
+            private String groupId;
+            private String artifactId;
+            private String version;
+            private String latest;
+
+            public MetaDataHelper(File metaDataFile) {
+                try (InputStream inputStream = new BufferedInputStream(new FileInputStream(metaDataFile))) {
+                    parse(inputStream);
+                } catch (IOException | XMLStreamException e) {
+                    throw new RelocatorException(e);
+                }
+            }
+
+            public MetaDataHelper(InputStream inputStream) {
+                try {
+                    parse(inputStream);
+                } catch (XMLStreamException e) {
+                    throw new RelocatorException(e);
+                }
+            }
+
+            private void parse(InputStream inputStream) throws XMLStreamException {
+                XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+                try {
+                    // Current element path, and values of the current snapshotVersion element
+                    Deque<String> path = new ArrayDeque<>();
+                    String classifier = null;
+                    String extension = null;
+                    String value = null;
+
+                    while (reader.hasNext()) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.START_ELEMENT) {
+                            String name = reader.getLocalName();
+                            path.addLast(name);
+                            if (path.size() == 2) {
+                                if ("groupId".equals(name)) {
+                                    groupId = readText(reader, path);
+                                } else if ("artifactId".equals(name)) {
+                                    artifactId = readText(reader, path);
+                                } else if ("version".equals(name)) {
+                                    version = readText(reader, path);
+                                }
+                            } else if (path.size() == 5 && isSnapshotVersion(path)) {
+                                if ("classifier".equals(name)) {
+                                    classifier = readText(reader, path);
+                                } else if ("extension".equals(name)) {
+                                    extension = readText(reader, path);
+                                } else if ("value".equals(name)) {
+                                    value = readText(reader, path);
+                                }
+                            }
+                        } else if (event == XMLStreamConstants.END_ELEMENT) {
+                            if (path.size() == 4 && isSnapshotVersion(path)) {
+                                // The jar snapshot version is found, stop here
+                                if ((classifier == null || classifier.isEmpty()) && "jar".equals(extension)) {
+                                    latest = value;
+                                    return;
+                                }
+                                classifier = null;
+                                extension = null;
+                                value = null;
+                            }
+                            path.pollLast();
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            /**
+             * Read the text of the current element, and leave it
+             */
+            private static String readText(XMLStreamReader reader, Deque<String> path) throws XMLStreamException {
+                String text = reader.getElementText().trim();
+                path.removeLast();
+                return text;
+            }
+
+            /**
+             * @return true if the path is, or is inside, metadata/versioning/snapshotVersions/snapshotVersion
+             */
+            private static boolean isSnapshotVersion(Deque<String> path) {
+                Iterator<String> iterator = path.iterator();
+                return "metadata".equals(iterator.next())
+                        && "versioning".equals(iterator.next())
+                        && "snapshotVersions".equals(iterator.next())
+                        && "snapshotVersion".equals(iterator.next());
+            }
+
+            boolean isValid() {
+                return groupId != null && !groupId.isEmpty()
+                        && artifactId != null && !artifactId.isEmpty()
+                        && version != null && !version.isEmpty();
+            }
+
+            String getLatest() {
+                return latest != null ? latest : "";
+            }
+        }
+    }
+
+
+    /**
+     * HTTP client used to download files
+     */
+    public interface Transport {
+
+        /**
+         * Send a GET request, following redirections
+         *
+         * @param url     url
+         * @param headers request headers
+         * @return the response, which must be closed
+         * @throws IOException if the request cannot be sent
+         */
+        Response get(URL url, Map<String, String> headers) throws IOException;
+
+        /**
+         * @return a transport based on HttpURLConnection, which keeps connections alive between requests
+         */
+        static Transport pooled() {
+            return new UrlConnectionTransport();
+        }
+
+        /**
+         * A transport based on the java.net.http client (JDK 11+), which multiplexes the requests
+         * to a repository over a single HTTP/2 connection when the repository supports it.
+         * <p>
+         * The {@link #pooled()} transport is returned if the JVM does not provide java.net.http.
+         *
+         * @return the transport
+         */
+        static Transport http2() {
+            return HttpClientTransport.isSupported() ? new HttpClientTransport() : pooled();
+        }
+    }
+
+
+    /**
+     * Response to a request sent by a {@link Transport}
+     */
+    public interface Response extends Closeable {
+
+        /**
+         * @return url of the response, after redirections
+         */
+        URL url();
+
+        /**
+         * @return HTTP status code
+         */
+        int status();
+
+        /**
+         * @param name header name
+         * @return the first value of the header, or null
+         */
+        String header(String name);
+
+        /**
+         * @return the response body
+         * @throws IOException if the body cannot be read
+         */
+        InputStream body() throws IOException;
+
+        /**
+         * Release the response, the connection is kept alive if possible
+         */
+        @Override
+        void close();
+
+        /**
+         * Abort the response, the connection is closed
+         * <p>
+         * This method can be called from any thread.
+         */
+        void abort();
+    }
+
+
+    /**
+     * Transport based on HttpURLConnection
+     * <p>
+     * The JDK keeps the connections alive and reuses them as long as the response
+     * bodies are closed, including the bodies of error responses.
+     */
+    static class UrlConnectionTransport implements Transport {
+
+        private volatile Proxy proxy;
+        private volatile boolean proxyResolved = false;
+
+        @Override
+        public Response get(URL url, Map<String, String> headers) throws IOException {
+            Proxy p = getProxy();
+            final HttpURLConnection conn = (HttpURLConnection) (p != null ? url.openConnection(p) : url.openConnection());
+            headers.forEach(conn::setRequestProperty);
+            conn.setInstanceFollowRedirects(true);
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(5000);
+
+            int status = conn.getResponseCode();
+            boolean redirect = status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER;
+
+            // Redirections between protocols are not followed by HttpURLConnection
+            if (redirect) {
+                String newUrl = conn.getHeaderField("Location");
+                new UrlConnectionResponse(conn, status).close();
+                return get(new URL(url, newUrl), headers);
+            }
+
+            return new UrlConnectionResponse(conn, status);
+        }
+
+        /**
+         * Get the proxy used by the JVM
+         */
+        Proxy getProxy() {
+
+            // Return already found proxy
+            if (proxyResolved) {
+                return proxy;
+            }
+
+            // Try to find the first proxy used by the JVM
+            try {
+                ProxySelector selector = ProxySelector.getDefault();
+                List<Proxy> proxyList = selector.select(new URI("http://foo/bar"));
+
+                if (proxyList != null && !proxyList.isEmpty()) {
+                    proxy = proxyList.get(0);
+                }
+            } catch (Exception ignored) {
+                // Exception ignored
+            }
+            proxyResolved = true;
+            return proxy;
+        }
+
+        static class UrlConnectionResponse implements Response {
+
+            private final HttpURLConnection connection;
+            private final int status;
+            private InputStream body;
+
+            UrlConnectionResponse(HttpURLConnection connection, int status) {
+                this.connection = connection;
+                this.status = status;
+            }
+
+            @Override
+            public URL url() {
+                return connection.getURL();
+            }
+
+            @Override
+            public int status() {
+                return status;
+            }
+
+            @Override
+            public String header(String name) {
+                return connection.getHeaderField(name);
+            }
+
+            @Override
+            public synchronized InputStream body() throws IOException {
+                if (body == null) {
+                    body = connection.getInputStream();
+                }
+                return body;
+            }
+
+            @Override
+            public synchronized void close() {
+                // Closing the body stream drains what remains of it in the background,
+                // then puts the connection back in the keep-alive cache
+                try {
+                    InputStream inputStream = body != null ? body : (status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {
+                    connection.disconnect();
+                }
+            }
+
+            @Override
+            public void abort() {
+                connection.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Transport based on the java.net.http client (JDK 11+)
+     * <p>
+     * The client is used through reflection so DMRelocator still runs on older JVMs.
+     * A single client is used for all the requests, so the requests to a repository
+     * supporting HTTP/2 share a single connection.
+     */
+    static class HttpClientTransport implements Transport {
+
+        // Bodies larger than this are not drained when closed
+        static final int DRAIN_LIMIT = 64 * 1024;
+
+        private static final Method METHOD_CLIENT_NEW_BUILDER;
+        private static final Method METHOD_CLIENT_BUILDER_VERSION;
+        private static final Method METHOD_CLIENT_BUILDER_REDIRECT;
+        private static final Method METHOD_CLIENT_BUILDER_CONNECT_TIMEOUT;
+        private static final Method METHOD_CLIENT_BUILDER_PROXY;
+        private static final Method METHOD_CLIENT_BUILDER_BUILD;
+        private static final Method METHOD_CLIENT_SEND;
+        private static final Method METHOD_REQUEST_NEW_BUILDER;
+        private static final Method METHOD_REQUEST_BUILDER_HEADER;
+        private static final Method METHOD_REQUEST_BUILDER_TIMEOUT;
+        private static final Method METHOD_REQUEST_BUILDER_BUILD;
+        private static final Method METHOD_RESPONSE_STATUS_CODE;
+        private static final Method METHOD_RESPONSE_HEADERS;
+        private static final Method METHOD_RESPONSE_BODY;
+        private static final Method METHOD_RESPONSE_URI;
+        private static final Method METHOD_HEADERS_FIRST_VALUE;
+        private static final Object VERSION_HTTP_2;
+        private static final Object REDIRECT_NORMAL;
+        private static final Object BODY_HANDLER_INPUT_STREAM;
+
+        static {
+            Method[] methods = new Method[16];
+            Object[] values = new Object[3];
+            try {
+                Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+                Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+                Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+                Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+                Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+                Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+                Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+                Class<?> bodyHandlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+                Class<?> bodyHandlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+                Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+                Class<?> durationClass = Class.forName("java.time.Duration");
+
+                methods[0] = clientClass.getMethod("newBuilder");
+                methods[1] = clientBuilderClass.getMethod("version", versionClass);
+                methods[2] = clientBuilderClass.getMethod("followRedirects", redirectClass);
+                methods[3] = clientBuilderClass.getMethod("connectTimeout", durationClass);
+                methods[4] = clientBuilderClass.getMethod("build");
+                methods[5] = clientClass.getMethod("send", requestClass, bodyHandlerClass);
+                methods[6] = requestClass.getMethod("newBuilder", URI.class);
+                methods[7] = requestBuilderClass.getMethod("header", String.class, String.class);
+                methods[8] = requestBuilderClass.getMethod("timeout", durationClass);
+                methods[9] = requestBuilderClass.getMethod("build");
+                methods[10] = responseClass.getMethod("statusCode");
+                methods[11] = responseClass.getMethod("headers");
+                methods[12] = responseClass.getMethod("body");
+                methods[13] = responseClass.getMethod("uri");
+                methods[14] = headersClass.getMethod("firstValue", String.class);
+                methods[15] = clientBuilderClass.getMethod("proxy", ProxySelector.class);
+                values[0] = versionClass.getField("HTTP_2").get(null);
+                values[1] = redirectClass.getField("NORMAL").get(null);
+                values[2] = bodyHandlersClass.getMethod("ofInputStream").invoke(null);
+            } catch (ReflectiveOperationException ignored) {
+                // java.net.http is not available
+                methods = new Method[16];
+                values = new Object[3];
+            }
+            METHOD_CLIENT_NEW_BUILDER = methods[0];
+            METHOD_CLIENT_BUILDER_VERSION = methods[1];
+            METHOD_CLIENT_BUILDER_REDIRECT = methods[2];
+            METHOD_CLIENT_BUILDER_CONNECT_TIMEOUT = methods[3];
+            METHOD_CLIENT_BUILDER_BUILD = methods[4];
+            METHOD_CLIENT_SEND = methods[5];
+            METHOD_REQUEST_NEW_BUILDER = methods[6];
+            METHOD_REQUEST_BUILDER_HEADER = methods[7];
+            METHOD_REQUEST_BUILDER_TIMEOUT = methods[8];
+            METHOD_REQUEST_BUILDER_BUILD = methods[9];
+            METHOD_RESPONSE_STATUS_CODE = methods[10];
+            METHOD_RESPONSE_HEADERS = methods[11];
+            METHOD_RESPONSE_BODY = methods[12];
+            METHOD_RESPONSE_URI = methods[13];
+            METHOD_HEADERS_FIRST_VALUE = methods[14];
+            METHOD_CLIENT_BUILDER_PROXY = methods[15];
+            VERSION_HTTP_2 = values[0];
+            REDIRECT_NORMAL = values[1];
+            BODY_HANDLER_INPUT_STREAM = values[2];
+        }
+
+        // The java.net.http.HttpClient instance
+        private final Object client;
+        // java.time.Duration of the timeouts
+        private final Object timeout;
+
+        /**
+         * @return true if the JVM provides java.net.http
+         */
+        static boolean isSupported() {
+            return METHOD_CLIENT_NEW_BUILDER != null;
+        }
+
+        HttpClientTransport() {
+            if (!isSupported()) {
+                throw new RelocatorException("java.net.http is not available");
+            }
+            try {
+                this.timeout = Class.forName("java.time.Duration").getMethod("ofMillis", long.class).invoke(null, 5000L);
+                Object builder = METHOD_CLIENT_NEW_BUILDER.invoke(null);
+                builder = METHOD_CLIENT_BUILDER_VERSION.invoke(builder, VERSION_HTTP_2);
+                builder = METHOD_CLIENT_BUILDER_REDIRECT.invoke(builder, REDIRECT_NORMAL);
+                builder = METHOD_CLIENT_BUILDER_CONNECT_TIMEOUT.invoke(builder, timeout);
+                // Same proxies as HttpURLConnection, whatever the default of the JDK
+                ProxySelector proxySelector = ProxySelector.getDefault();
+                if (proxySelector != null) {
+                    builder = METHOD_CLIENT_BUILDER_PROXY.invoke(builder, proxySelector);
+                }
+                this.client = METHOD_CLIENT_BUILDER_BUILD.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new RelocatorException("Cannot create java.net.http client", e);
+            }
+        }
+
+        @Override
+        public Response get(URL url, Map<String, String> headers) throws IOException {
+            try {
+                Object builder = METHOD_REQUEST_NEW_BUILDER.invoke(null, url.toURI());
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    builder = METHOD_REQUEST_BUILDER_HEADER.invoke(builder, header.getKey(), header.getValue());
+                }
+                builder = METHOD_REQUEST_BUILDER_TIMEOUT.invoke(builder, timeout);
+                Object request = METHOD_REQUEST_BUILDER_BUILD.invoke(builder);
+                return new HttpClientResponse(METHOD_CLIENT_SEND.invoke(client, request, BODY_HANDLER_INPUT_STREAM));
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Request interrupted: " + url);
+                }
+                throw new IOException("Request failed: " + url, cause);
+            } catch (IllegalAccessException | URISyntaxException e) {
+                throw new IOException("Request failed: " + url, e);
+            }
+        }
+
+        static class HttpClientResponse implements Response {
+
+            private final Object response;
+            private final int status;
+            private final InputStream body;
+
+            HttpClientResponse(Object response) throws IllegalAccessException, InvocationTargetException {
+                this.response = response;
+                this.status = (Integer) METHOD_RESPONSE_STATUS_CODE.invoke(response);
+                this.body = (InputStream) METHOD_RESPONSE_BODY.invoke(response);
+            }
+
+            @Override
+            public URL url() {
+                try {
+                    return ((URI) METHOD_RESPONSE_URI.invoke(response)).toURL();
+                } catch (IllegalAccessException | InvocationTargetException | MalformedURLException e) {
+                    throw new RelocatorException("Cannot read response url", e);
+                }
+            }
+
+            @Override
+            public int status() {
+                return status;
+            }
+
+            @Override
+            public String header(String name) {
+                try {
+                    Object headers = METHOD_RESPONSE_HEADERS.invoke(response);
+                    return ((Optional<?>) METHOD_HEADERS_FIRST_VALUE.invoke(headers, name)).map(Object::toString).orElse(null);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RelocatorException("Cannot read response header", e);
+                }
+            }
+
+            @Override
+            public InputStream body() {
+                return body;
+            }
+
+            @Override
+            public void close() {
+                // Closing the body before its end cancels the request,
+                // small bodies are drained so their connection can be reused
+                try {
+                    byte[] bytes = new byte[4096];
+                    long drained = 0;
+                    int count;
+                    while (drained <= DRAIN_LIMIT && (count = body.read(bytes)) != -1) {
+                        drained += count;
+                    }
+                } catch (IOException ignored) {
+                    // Exception ignored
+                } finally {
+                    abort();
+                }
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                    // Exception ignored
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Resolve the dependencies of artifacts from their POM files
+     * <p>
+     * The dependency graph is walked breadth first: the POM files of a level are
+     * downloaded and parsed concurrently, then the dependencies of the level are
+     * selected in order, the nearest version of an artifact winning over the others.
+     * POM files are kept in the cache folder, next to the artifact files, so they are
+     * only downloaded once. Parent POM files, properties and dependency management,
+     * including imported BOMs, are taken into account.
+     */
+    static class DependencyResolver {
+
+        // Maximum depth of the property references
+        private static final int MAX_DEPTH = 32;
+
+        private final DMRelocator dmRelocator;
+        private final Downloader downloader;
+        // Models of the POM files, by coordinates
+        private final Map<String, FutureTask<Model>> models = new ConcurrentHashMap<>();
+        // Threads building the models, by coordinates, to detect cycles between POM files
+        private final Map<String, Thread> builders = new HashMap<>();
+        // Coordinates of the model each thread waits for, guarded by builders
+        private final Map<Thread, String> awaited = new HashMap<>();
+
+        DependencyResolver(DMRelocator dmRelocator, Downloader downloader) {
+            this.dmRelocator = requireNonNull(dmRelocator, "dmRelocator cannot be null");
+            this.downloader = requireNonNull(downloader, "downloader cannot be null");
+        }
+
+        /**
+         * Resolve the dependencies of artifacts
+         *
+         * @param artifacts artifacts
+         * @return the artifacts, followed by their dependencies, breadth first
+         * @throws RelocatorException if a POM file cannot be downloaded or read
+         */
+        List<Artifact> resolve(List<Artifact> artifacts) {
+            long start = System.currentTimeMillis();
+            // Selected artifacts, by group id and artifact id
+            Map<String, Node> selected = new LinkedHashMap<>();
+            List<Node> level = new ArrayList<>();
+            for (Artifact artifact : artifacts) {
+                Node node = new Node(artifact, Collections.emptySet(), true);
+                selected.put(node.key(), node);
+                level.add(node);
+            }
+
+            int threads = Math.max(1, dmRelocator.downloadThreads);
+            ExecutorService executor = Workers.newPool("resolve", threads, dmRelocator.virtualThreads);
+            try {
+                while (!level.isEmpty()) {
+                    // Read the POM files of the level
+                    Map<Artifact, Future<Model>> futures = new LinkedHashMap<>();
+                    for (Node node : level) {
+                        futures.put(node.artifact, node.artifact.url() != null
+                                ? CompletableFuture.completedFuture(null)
+                                : executor.submit(() -> model(node.artifact.groupId(), node.artifact.artifactId(), node.artifact.version())));
+                    }
+                    List<Model> levelModels = Workers.getAll(futures, "resolve the dependencies of");
+
+                    // Select the dependencies of the level, in order
+                    List<Node> next = new ArrayList<>();
+                    for (int i = 0; i < level.size(); i++) {
+                        Node node = level.get(i);
+                        Model model = levelModels.get(i);
+                        if (model == null) {
+                            continue;
+                        }
+                        node.pomOnly = "pom".equals(model.packaging);
+                        for (Dependency dependency : model.dependencies) {
+                            if (!dependency.isResolvable() || node.excludes(dependency) || selected.containsKey(dependency.key())) {
+                                continue;
+                            }
+                            String version;
+                            try {
+                                version = Pom.version(dependency.version);
+                            } catch (RelocatorException e) {
+                                throw new RelocatorException("Cannot resolve " + dependency.key() + ", dependency of " + node.artifact + ": " + e.getMessage());
+                            }
+                            if (version == null || version.contains("${")) {
+                                dmRelocator.logger.accept("Skipped " + dependency.key() + ", dependency of " + node.artifact + ": unknown version " + dependency.version);
+                                continue;
+                            }
+                            Set<String> exclusions = new HashSet<>(node.exclusions);
+                            exclusions.addAll(dependency.exclusions);
+                            Node child = new Node(new Artifact(dependency.groupId, dependency.artifactId, version), exclusions, false);
+                            selected.put(child.key(), child);
+                            next.add(child);
+                        }
+                    }
+                    level = next;
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            List<Artifact> resolved = new ArrayList<>();
+            for (Node node : selected.values()) {
+                if (node.declared || !node.pomOnly) {
+                    resolved.add(node.artifact);
+                }
+            }
+            dmRelocator.logger.accept("Resolved " + (resolved.size() - artifacts.size()) + " dependencies in " + (System.currentTimeMillis() - start) + " ms");
+            return resolved;
+        }
+
+        /**
+         * Get the effective model of a POM file, built once
+         *
+         * @return the model, or null if no repository hosts the POM file
+         */
+        Model model(String groupId, String artifactId, String version) throws IOException {
+            String key = groupId + ":" + artifactId + ":" + version;
+            FutureTask<Model> task = new FutureTask<>(() -> buildModel(groupId, artifactId, version));
+            FutureTask<Model> existing = models.putIfAbsent(key, task);
+            boolean waiting = false;
+            if (existing == null) {
+                synchronized (builders) {
+                    builders.put(key, Thread.currentThread());
+                }
+                try {
+                    task.run();
+                } finally {
+                    synchronized (builders) {
+                        builders.remove(key);
+                    }
+                }
+            } else {
+                task = existing;
+                if (!task.isDone()) {
+                    // Waiting for a model which waits for a model built by this thread would never end
+                    synchronized (builders) {
+                        if (isWaitingFor(key)) {
+                            throw new RelocatorException("Cyclic parent or imported POM files for " + key);
+                        }
+                        awaited.put(Thread.currentThread(), key);
+                        waiting = true;
+                    }
+                }
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading the POM file of " + key);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RelocatorException("Cannot read the POM file of " + key, cause);
+            } finally {
+                if (waiting) {
+                    synchronized (builders) {
+                        awaited.remove(Thread.currentThread());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Follow the threads building the models, and the models they wait for, from a model
+         * <p>
+         * Must be called while holding the builders lock.
+         *
+         * @return true if the chain leads back to the current thread
+         */
+        private boolean isWaitingFor(String key) {
+            Thread thread = builders.get(key);
+            for (int i = 0; thread != null && i <= awaited.size(); i++) {
+                if (thread == Thread.currentThread()) {
+                    return true;
+                }
+                String next = awaited.get(thread);
+                thread = next != null ? builders.get(next) : null;
+            }
+            return false;
+        }
+
+        private Model buildModel(String groupId, String artifactId, String version) throws IOException {
+            Pom pom = pom(new Artifact(groupId, artifactId, version));
+            if (pom == null) {
+                dmRelocator.logger.accept("No POM file found for " + groupId + ":" + artifactId + ":" + version);
+                return null;
+            }
+            Model parent = pom.parentArtifactId != null ? model(pom.parentGroupId, pom.parentArtifactId, pom.parentVersion) : null;
+
+            Model model = new Model();
+            model.packaging = pom.packaging != null ? pom.packaging : "jar";
+
+            // Properties
+            if (parent != null) {
+                model.properties.putAll(parent.properties);
+            }
+            model.properties.putAll(pom.properties);
+            String projectGroupId = pom.groupId != null ? pom.groupId : pom.parentGroupId;
+            String projectVersion = pom.version != null ? pom.version : pom.parentVersion;
+            for (String prefix : new String[]{"project.", "pom.", ""}) {
+                model.properties.put(prefix + "groupId", projectGroupId);
+                model.properties.put(prefix + "artifactId", artifactId);
+                model.properties.put(prefix + "version", projectVersion);
+            }
+            if (pom.parentVersion != null) {
+                model.properties.put("project.parent.groupId", pom.parentGroupId);
+                model.properties.put("project.parent.version", pom.parentVersion);
+            }
+
+            // Declarations, inherited from the parent, interpolated with the properties of this POM file
+            model.declaredManaged.addAll(pom.managedDependencies);
+            if (parent != null) {
+                model.declaredManaged.addAll(parent.declaredManaged);
+                model.declaredDependencies.addAll(parent.declaredDependencies);
+            }
+            model.declaredDependencies.addAll(pom.dependencies);
+
+            // Dependency management: this POM file, then its parent, then the imports filling the gaps
+            Map<String, Dependency> managed = new LinkedHashMap<>();
+            List<Dependency> imports = new ArrayList<>();
+            for (Dependency dependency : model.declaredManaged) {
+                Dependency interpolated = dependency.interpolate(model.properties);
+                if ("import".equals(interpolated.scope) && "pom".equals(interpolated.type)) {
+                    imports.add(interpolated);
+                } else {
+                    managed.putIfAbsent(interpolated.key(), interpolated);
+                }
+            }
+            for (Dependency dependency : imports) {
+                Model imported = model(dependency.groupId, dependency.artifactId, Pom.version(dependency.version));
+                if (imported != null) {
+                    imported.managed.forEach(managed::putIfAbsent);
+                }
+            }
+            model.managed.putAll(managed);
+
+            // Dependencies, those of this POM file replacing those of the parent
+            Map<String, Dependency> dependencies = new LinkedHashMap<>();
+            for (Dependency dependency : model.declaredDependencies) {
+                Dependency interpolated = dependency.interpolate(model.properties);
+                Dependency management = managed.get(interpolated.key());
+                if (management != null) {
+                    if (interpolated.version == null) {
+                        interpolated.version = management.version;
+                    }
+                    if (interpolated.scope == null) {
+                        interpolated.scope = management.scope;
+                    }
+                    if (interpolated.exclusions.isEmpty()) {
+                        interpolated.exclusions.addAll(management.exclusions);
+                    }
+                }
+                dependencies.remove(interpolated.key());
+                dependencies.put(interpolated.key(), interpolated);
+            }
+            model.dependencies.addAll(dependencies.values());
+            return model;
+        }
+
+        /**
+         * Read a POM file, from the cache folder or from the repositories
+         *
+         * @return the POM file, or null if no repository hosts it
+         */
+        private Pom pom(Artifact artifact) throws IOException {
+            Path cacheDir = dmRelocator.cacheDir;
+            List<Repository> remotes = new ArrayList<>();
+            dmRelocator.repositories.stream().filter(Repository::isRemote).forEach(remotes::add);
+
+            // Snapshot versions are resolved with the maven-metadata.xml files
+            String name = artifact.name();
+            if (artifact.isSnapshot()) {
+                Downloader.Resolution resolution = downloader.resolve(artifact, dmRelocator.repositories, cacheDir);
+                if (resolution == null) {
+                    return null;
+                }
+                resolution.release();
+                if (resolution.name != null) {
+                    name = resolution.name;
+                }
+                remotes.remove(resolution.repository);
+                remotes.add(0, resolution.repository);
+            } else {
+                // Try the repository which hosted the artifact last time
+                Repository known = downloader.resolutionCache(cacheDir).repository(artifact, remotes);
+                if (known != null) {
+                    remotes.remove(known);
+                    remotes.add(0, known);
+                }
+            }
+
+            File file = new File(artifact.toFile(cacheDir).getParentFile(), name + ".pom");
+            if (!file.isFile()) {
+                Downloader.makeDir(file.getParentFile().toPath());
+                if (!download(artifact, name, remotes, file)) {
+                    return null;
+                }
+            }
+            try {
+                return Pom.parse(file);
+            } catch (RelocatorException e) {
+                // Downloaded again next time
+                Files.deleteIfExists(file.toPath());
+                throw new RelocatorException("Invalid POM file for " + artifact, e.getCause());
+            }
+        }
+
+        /**
+         * Download a POM file from the first repository hosting it
+         *
+         * @return false if no repository hosts the POM file
+         * @throws IOException if no repository hosts the POM file, and one of them could not be reached
+         */
+        private boolean download(Artifact artifact, String name, List<Repository> repositories, File file) throws IOException {
+            IOException failure = null;
+            for (Repository repository : repositories) {
+                try {
+                    Response response = downloader.openConnection(artifact.getPomUrl(repository.url(), name));
+                    if (response.status() >= 200 && response.status() < 300) {
+                        downloader.downloadFile(response, file);
+                        return true;
+                    }
+                    response.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+
+        /**
+         * Artifact of the dependency graph
+         */
+        private static class Node {
+            final Artifact artifact;
+            // Excluded dependencies (groupId:artifactId, '*' matching anything)
+            final Set<String> exclusions;
+            // Added to DMRelocator, not a dependency
+            final boolean declared;
+            // The artifact has no jar file
+            boolean pomOnly;
+
+            Node(Artifact artifact, Set<String> exclusions, boolean declared) {
+                this.artifact = artifact;
+                this.exclusions = exclusions;
+                this.declared = declared;
+            }
+
+            String key() {
+                return artifact.groupId() + ":" + artifact.artifactId();
+            }
+
+            boolean excludes(Dependency dependency) {
+                return exclusions.contains(dependency.key())
+                        || exclusions.contains(dependency.groupId + ":*")
+                        || exclusions.contains("*:" + dependency.artifactId)
+                        || exclusions.contains("*:*");
+            }
+        }
+
+        /**
+         * Effective model of a POM file: properties, dependency management and dependencies
+         * merged with those of its parents, and interpolated
+         */
+        static class Model {
+            String packaging;
+            final Map<String, String> properties = new HashMap<>();
+            // Managed dependencies, by group id and artifact id
+            final Map<String, Dependency> managed = new LinkedHashMap<>();
+            final List<Dependency> dependencies = new ArrayList<>();
+            // Managed dependencies and dependencies of this POM file and its parents, as declared
+            final List<Dependency> declaredManaged = new ArrayList<>();
+            final List<Dependency> declaredDependencies = new ArrayList<>();
+        }
+
+        /**
+         * Dependency declared in a POM file
+         */
+        static class Dependency {
+            String groupId;
+            String artifactId;
+            String version;
+            String scope;
+            String type;
+            String classifier;
+            String optional;
+            // Excluded dependencies (groupId:artifactId)
+            final Set<String> exclusions = new LinkedHashSet<>();
+
+            String key() {
+                return groupId + ":" + artifactId;
+            }
+
+            /**
+             * @return true if the dependency is a compile or runtime dependency on a jar file
+             */
+            boolean isResolvable() {
+                return groupId != null && artifactId != null
+                        && (scope == null || "compile".equals(scope) || "runtime".equals(scope))
+                        && (type == null || "jar".equals(type) || "bundle".equals(type))
+                        && (classifier == null || classifier.isEmpty())
+                        && !"true".equals(optional);
+            }
+
+            /**
+             * @return a copy of the dependency, with its properties replaced
+             */
+            Dependency interpolate(Map<String, String> properties) {
+                Dependency dependency = new Dependency();
+                dependency.groupId = Pom.interpolate(groupId, properties);
+                dependency.artifactId = Pom.interpolate(artifactId, properties);
+                dependency.version = Pom.interpolate(version, properties);
+                dependency.scope = Pom.interpolate(scope, properties);
+                dependency.type = Pom.interpolate(type, properties);
+                dependency.classifier = Pom.interpolate(classifier, properties);
+                dependency.optional = Pom.interpolate(optional, properties);
+                for (String exclusion : exclusions) {
+                    dependency.exclusions.add(Pom.interpolate(exclusion, properties));
+                }
+                return dependency;
+            }
+        }
+
+        /**
+         * Content of a POM file, as declared
+         */
+        static class Pom {
+
+            String groupId;
+            String artifactId;
+            String version;
+            String packaging;
+            String parentGroupId;
+            String parentArtifactId;
+            String parentVersion;
+            final Map<String, String> properties = new LinkedHashMap<>();
+            final List<Dependency> dependencies = new ArrayList<>();
+            final List<Dependency> managedDependencies = new ArrayList<>();
+
+            /**
+             * Parse a POM file
+             *
+             * @throws RelocatorException if the file cannot be read
+             */
+            static Pom parse(File file) {
+                try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+                    return parse(inputStream);
+                } catch (IOException | XMLStreamException e) {
+                    throw new RelocatorException(e);
+                }
+            }
+
+            static Pom parse(InputStream inputStream) throws XMLStreamException {
+                Pom pom = new Pom();
+                XMLStreamReader reader = Downloader.MetaDataHelper.XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+                try {
+                    // Current element path, and the dependency being read
+                    List<String> path = new ArrayList<>();
+                    Dependency dependency = null;
+                    String exclusionGroupId = null;
+                    String exclusionArtifactId = null;
+
+                    while (reader.hasNext()) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.START_ELEMENT) {
+                            String name = reader.getLocalName();
+                            path.add(name);
+                            int depth = path.size();
+                            if (depth == 2 && isProjectField(name)) {
+                                pom.setProjectField(name, readText(reader, path));
+                            } else if (depth == 3 && "parent".equals(path.get(1))) {
+                                pom.setParentField(name, readText(reader, path));
+                            } else if (depth == 3 && "properties".equals(path.get(1))) {
+                                pom.properties.put(name, readText(reader, path));
+                            } else if ("dependency".equals(name) && isDependencies(path, depth - 1)) {
+                                dependency = new Dependency();
+                            } else if (dependency != null && !"exclusions".equals(name) && "dependency".equals(path.get(depth - 2)) && isDependencies(path, depth - 2)) {
+                                setDependencyField(dependency, name, readText(reader, path));
+                            } else if (dependency != null && depth >= 4 && "exclusion".equals(path.get(depth - 2))) {
+                                if ("groupId".equals(name)) {
+                                    exclusionGroupId = readText(reader, path);
+                                } else if ("artifactId".equals(name)) {
+                                    exclusionArtifactId = readText(reader, path);
+                                }
+                            }
+                        } else if (event == XMLStreamConstants.END_ELEMENT) {
+                            int depth = path.size();
+                            String name = path.remove(depth - 1);
+                            if (dependency != null && "dependency".equals(name) && isDependencies(path, depth - 1)) {
+                                (depth == 3 ? pom.dependencies : pom.managedDependencies).add(dependency);
+                                dependency = null;
+                            } else if (dependency != null && "exclusion".equals(name)) {
+                                dependency.exclusions.add(exclusionGroupId + ":" + exclusionArtifactId);
+                                exclusionGroupId = null;
+                                exclusionArtifactId = null;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                return pom;
+            }
+
+            private static boolean isProjectField(String name) {
+                return "groupId".equals(name) || "artifactId".equals(name) || "version".equals(name) || "packaging".equals(name);
+            }
+
+            private void setProjectField(String name, String value) {
+                if ("groupId".equals(name)) {
+                    groupId = value;
+                } else if ("artifactId".equals(name)) {
+                    artifactId = value;
+                } else if ("version".equals(name)) {
+                    version = value;
+                } else {
+                    packaging = value;
+                }
+            }
+
+            private void setParentField(String name, String value) {
+                if ("groupId".equals(name)) {
+                    parentGroupId = value;
+                } else if ("artifactId".equals(name)) {
+                    parentArtifactId = value;
+                } else if ("version".equals(name)) {
+                    parentVersion = value;
+                }
+            }
+
+            private static void setDependencyField(Dependency dependency, String name, String value) {
+                switch (name) {
+                    case "groupId":
+                        dependency.groupId = value;
+                        break;
+                    case "artifactId":
+                        dependency.artifactId = value;
+                        break;
+                    case "version":
+                        dependency.version = value;
+                        break;
+                    case "scope":
+                        dependency.scope = value;
+                        break;
+                    case "type":
+                        dependency.type = value;
+                        break;
+                    case "classifier":
+                        dependency.classifier = value;
+                        break;
+                    case "optional":
+                        dependency.optional = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            /**
+             * @return true if the first elements of the path are project/dependencies
+             * or project/dependencyManagement/dependencies
+             */
+            private static boolean isDependencies(List<String> path, int length) {
+                if (length == 2) {
+                    return "project".equals(path.get(0)) && "dependencies".equals(path.get(1));
+                }
+                return length == 3 && "project".equals(path.get(0)) && "dependencyManagement".equals(path.get(1)) && "dependencies".equals(path.get(2));
+            }
+
+            /**
+             * Read the text of the current element, and leave it
+             */
+            private static String readText(XMLStreamReader reader, List<String> path) throws XMLStreamException {
+                String text = reader.getElementText().trim();
+                path.remove(path.size() - 1);
+                return text;
+            }
+
+            /**
+             * Replace the properties of a value
+             */
+            static String interpolate(String value, Map<String, String> properties) {
+                if (value == null) {
+                    return null;
+                }
+                for (int i = 0; i < MAX_DEPTH && value.contains("${"); i++) {
+                    StringBuilder builder = new StringBuilder();
+                    int index = 0;
+                    int start;
+                    while ((start = value.indexOf("${", index)) != -1) {
+                        int end = value.indexOf('}', start);
+                        if (end == -1) {
+                            break;
+                        }
+                        String property = properties.get(value.substring(start + 2, end));
+                        builder.append(value, index, start).append(property != null ? property : value.substring(start, end + 1));
+                        index = end + 1;
+                    }
+                    String interpolated = builder.append(value.substring(index)).toString();
+                    if (interpolated.equals(value)) {
+                        break;
+                    }
+                    value = interpolated;
+                }
+                return value;
+            }
+
+            /**
+             * @return the version of a dependency: the lower bound of a version range
+             * @throws RelocatorException if the lower bound of the range is exclusive or missing
+             */
+            static String version(String version) {
+                if (version == null || version.isEmpty() || (version.charAt(0) != '[' && version.charAt(0) != '(')) {
+                    return version;
+                }
+                String bound = version.substring(1).split("[,\\])]", 2)[0].trim();
+                if (version.charAt(0) == '(' || bound.isEmpty()) {
+                    throw new RelocatorException("Unsupported version range " + version + ", its lower bound must be inclusive");
+                }
+                return bound;
+            }
+        }
+    }
+
+
+    /**
+     * Helper class doing all the relocation process
+     * <p>
+     * It use jar-relocator (https://github.com/lucko/jar-relocator)
+     * or the built-in {@link ClassRewriter}, depending on the selected {@link Engine}
+     */
+    static class Relocator implements Closeable {
+
+        private final DMRelocator dmRelocator;
+        // Downloader providing the hash values of the downloaded files
+        private final Downloader downloader;
+        // Relocation manifests of the lib folders
+        private final Map<Path, RelocationManifest> relocationManifests = new ConcurrentHashMap<>();
+        // Pool transforming and compressing the entries of the jar files, created when needed
+        private ForkJoinPool entryPool;
+
+        public Relocator(DMRelocator dmRelocator, Downloader downloader) {
+            this.dmRelocator = requireNonNull(dmRelocator, "dmRelocator cannot be null");
+            this.downloader = requireNonNull(downloader, "downloader cannot be null");
+        }
+
+        /**
+         * jar-relocator classes
+         * <p>
+         * They are only loaded when the jar-relocator engine is used,
+         * once jar-relocator has been added to the class loader.
+         */
+        static class JarRelocator {
+            private JarRelocator() {
+            }
+
+            private static Class<?> loadClass(ClassLoader classLoader, String name) {
+                try {
+                    return Class.forName(name, true, classLoader);
+                } catch (ClassNotFoundException e) {
+                    throw new RelocatorException("Could not found class " + name, e);
+                }
+            }
+
+            /**
+             * @param classLoader class loader jar-relocator and asm were added to
+             */
+            static void run(ClassLoader classLoader, File input, File output, Collection<Relocation> relocations) {
+                Class<?> classJarRelocator = loadClass(classLoader, "me.lucko.jarrelocator.JarRelocator");
+                Class<?> classRelocation = loadClass(classLoader, "me.lucko.jarrelocator.Relocation");
+
+                // Jar-relocator Relocation instances
+                List<Object> rules = new LinkedList<>();
+                try {
+                    for (Relocation relocation : relocations) {
+                        Constructor<?> constructor = classRelocation.getConstructor(String.class, String.class, Collection.class, Collection.class);
+                        Object instance = constructor.newInstance(relocation.pattern, relocation.relocatedPattern, relocation.includes, relocation.excludes);
+                        rules.add(instance);
+                    }
+                } catch (InstantiationException | InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
+                    throw new RelocatorException("Cannot instantiate Relocation class", e);
+                }
+
+                // Run jar locator
+                try {
+                    Constructor<?> constructor = classJarRelocator.getConstructor(File.class, File.class, Collection.class);
+                    Object instance = constructor.newInstance(input, output, rules);
+                    Method run = classJarRelocator.getMethod("run");
+                    run.invoke(instance);
+
+                } catch (NoSuchMethodException | IllegalAccessException | InstantiationException | InvocationTargetException e) {
+                    throw new RelocatorException("Cannot instantiate JarRelocator class", e);
+                }
+            }
+        }
+
+        /**
+         * Relocate artifacts in parallel
+         *
+         * @param artifacts artifacts to relocate
+         * @param rules     relocation rules
+         * @param from      folder containing the downloaded artifacts
+         * @param to        folder which will contain the relocated artifacts
+         * @return the relocated files, in the order of the artifacts
+         */
+        List<File> relocateAll(List<Artifact> artifacts, RelocationRules rules, Path from, Path to) {
+            requireNonNull(artifacts, "artifacts cannot be null.");
+
+            int threads = Math.max(1, Math.min(dmRelocator.relocationThreads, artifacts.size()));
+            if (threads == 1) {
+                List<File> files = new ArrayList<>();
+                for (Artifact artifact : artifacts) {
+                    files.add(relocate(artifact, rules, from, to));
+                }
+                return files;
+            }
+
+            // Relocation is CPU bound, it always runs on platform threads
+            ExecutorService executor = Workers.newPool("relocate", threads, false);
+            try {
+                Map<Artifact, Future<File>> futures = new LinkedHashMap<>();
+                for (Artifact artifact : artifacts) {
+                    futures.put(artifact, executor.submit(() -> relocate(artifact, rules, from, to)));
+                }
+                return Workers.getAll(futures, "relocate");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Relocate an artifact
+         *
+         * @return the relocated file
+         */
+        File relocate(Artifact artifact, RelocationRules rules, Path from, Path to) {
+            // All parameters must not be null
+            requireNonNull(artifact);
+            requireNonNull(rules);
+            requireNonNull(from);
+            requireNonNull(to);
+
+            final OutputFormat format = dmRelocator.outputFormat;
+            final File input = from.resolve(artifact.toPath(from)).toFile();
+            final File output = output(artifact, to, format);
+
+            // Reuse the relocated file if it has been relocated
+            // from the same file, with the same relocations and engine
+            RelocationManifest manifest = relocationManifest(to);
+            String fingerprint = fingerprint(downloader.hashManifest(from).sha1(input), rules);
+            if (manifest.isUpToDate(output, fingerprint)) {
+                return output;
+            }
+
+            // Make sure output directory exist
+            try {
+                Downloader.makeDir(output.getParentFile().toPath());
+            } catch (IOException e) {
+                throw new RelocatorException("Cannot create output folder", e);
+            }
+
+            // Relocate into a partial file, published once complete
+            File partial = new File(output.getParentFile(), output.getName() + Downloader.PARTIAL_EXTENSION);
+            File relocated = new File(output.getParentFile(), output.getName() + ".relocated" + Downloader.PARTIAL_EXTENSION);
+            try {
+                deleteRecursively(partial.toPath());
+                if (!needsRelocation(input, rules)) {
+                    dmRelocator.logger.accept("Copying file: " + input.toPath() + " to: " + output.toPath() + " (nothing to relocate)");
+                    if (format == OutputFormat.JAR) {
+                        linkOrCopy(input.toPath(), partial.toPath());
+                    } else {
+                        convert(input, partial, format);
+                    }
+                } else if (dmRelocator.engine == Engine.BUILT_IN) {
+                    dmRelocator.logger.accept("Relocating file: " + input.toPath() + " to: " + output.toPath());
+                    relocateJar(input, partial, rules, format, entryPool());
+                } else {
+                    dmRelocator.logger.accept("Relocating file: " + input.toPath() + " to: " + output.toPath());
+                    // jar-relocator only writes compressed jars
+                    JarRelocator.run(dmRelocator.getClassLoader(), input, format == OutputFormat.JAR ? partial : relocated, rules.relocations());
+                    if (format != OutputFormat.JAR) {
+                        convert(relocated, partial, format);
+                    }
+                }
+
+                // Remove the outputs of the other formats
+                for (OutputFormat otherFormat : OutputFormat.values()) {
+                    File otherOutput = output(artifact, to, otherFormat);
+                    if (!otherOutput.equals(output)) {
+                        deleteRecursively(otherOutput.toPath());
+                    }
+                }
+                if (format == OutputFormat.DIRECTORY) {
+                    deleteRecursively(output.toPath());
+                }
+                try {
+                    Files.move(partial.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                throw new RelocatorException("Cannot relocate file: " + input.getName(), e);
+            } finally {
+                try {
+                    deleteRecursively(partial.toPath());
+                    Files.deleteIfExists(relocated.toPath());
+                } catch (IOException e) {
+                    dmRelocator.logger.accept("Unable to delete partial file: " + e.getMessage());
+                }
+            }
+
+            manifest.put(output, fingerprint);
+            return output;
+        }
+
+        /**
+         * @param artifact relocated artifact
+         * @param to       folder containing the relocated artifacts
+         * @param format   output format
+         * @return the relocated jar file, or folder
+         */
+        static File output(Artifact artifact, Path to, OutputFormat format) {
+            File jar = to.resolve(artifact.toPath(to)).toFile();
+            if (format == OutputFormat.DIRECTORY) {
+                String name = jar.getName();
+                return new File(jar.getParentFile(), name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name + ".d");
+            }
+            return jar;
+        }
+
+        /**
+         * Fingerprint of a relocation
+         *
+         * @param sha1  hash value of the input file
+         * @param rules relocation rules
+         * @return the fingerprint of the input file, relocations and engine
+         */
+        String fingerprint(String sha1, RelocationRules rules) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(dmRelocator.engine).append(' ').append(engineVersion()).append(' ').append(dmRelocator.outputFormat).append('\n');
+            builder.append(sha1).append('\n');
+            builder.append(rules.describe());
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                return FileSha1.bytesToHexString(digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RelocatorException("Unable to compute relocation fingerprint", e);
+            }
+        }
+
+        /**
+         * @return version of the relocation engine
+         */
+        private String engineVersion() {
+            if (dmRelocator.engine == Engine.BUILT_IN) {
+                return VERSION;
+            }
+            return dmRelocator.jarRelocatorArtifact.version + " " + dmRelocator.asmArtifact.version + " " + dmRelocator.asmCommonsArtifact.version;
+        }
+
+        /**
+         * Get the relocation manifest of a lib folder
+         * <p>
+         * The manifest is loaded once, the first time it is needed, and saved when
+         * the relocator is closed.
+         *
+         * @param output lib folder
+         * @return the relocation manifest
+         */
+        RelocationManifest relocationManifest(Path output) {
+            return relocationManifests.computeIfAbsent(output.toAbsolutePath(), RelocationManifest::new);
+        }
+
+        /**
+         * @return the pool transforming the entries of the jar files, or null to transform them sequentially
+         */
+        private synchronized ExecutorService entryPool() {
+            if (dmRelocator.relocationThreads == 1) {
+                return null;
+            }
+            if (entryPool == null) {
+                entryPool = Workers.newForkJoinPool("entries", dmRelocator.relocationThreads);
+            }
+            return entryPool;
+        }
+
+        /**
+         * Save the relocation manifests, and stop the entry pool
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (entryPool != null) {
+                    entryPool.shutdownNow();
+                    entryPool = null;
+                }
+            }
+            for (RelocationManifest manifest : relocationManifests.values()) {
+                try {
+                    manifest.save();
+                } catch (IOException e) {
+                    dmRelocator.logger.accept("Unable to save relocation manifest: " + e.getMessage());
+                }
+            }
+            relocationManifests.clear();
+        }
+
+        /**
+         * Relocate a jar file with the built-in engine
+         * <p>
+         * The output mirrors the output of jar-relocator: directory entries are
+         * recreated for the relocated paths, META-INF/INDEX.LIST is dropped and only
+         * the first resource of a given name is kept. Signature files are dropped too,
+         * since they are invalid once the classes have been rewritten.
+         * <p>
+         * The entries which are not modified are copied without being decompressed:
+         * only the classes referencing a relocated name are compressed again. The classes
+         * are transformed and compressed in parallel by the executor, while the output is
+         * written in the order of the input. Jar files which cannot be read this way
+         * (zip64, encrypted entries...) are relocated sequentially through java.util.zip.
+         *
+         * @param input    jar file to relocate
+         * @param output   relocated jar file, or folder
+         * @param rules    relocation rules
+         * @param format   output format
+         * @param executor executor transforming the classes, or null to transform them sequentially
+         * @throws IOException if the jar cannot be read or written
+         */
+        static void relocateJar(File input, File output, RelocationRules rules, OutputFormat format, ExecutorService executor) throws IOException {
+            try (MappedFile mappedFile = MappedFile.open(input.toPath())) {
+                List<RawZip.Entry> entries = mappedFile != null ? RawZip.entries(mappedFile.buffer()) : null;
+                if (entries != null) {
+                    relocateJar(mappedFile.buffer(), entries, output, rules, format, executor);
+                    return;
+                }
+            }
+            if (format == OutputFormat.JAR) {
+                relocateJarStream(input, output, rules);
+                return;
+            }
+            File relocated = new File(output.getParentFile(), output.getName() + ".relocated" + Downloader.PARTIAL_EXTENSION);
+            try {
+                relocateJarStream(input, relocated, rules);
+                convert(relocated, output, format);
+            } finally {
+                Files.deleteIfExists(relocated.toPath());
+            }
+        }
+
+        // Maximum number of classes transformed ahead of the writer
+        private static final int PENDING_ENTRIES = 256;
+
+        /**
+         * Relocate the entries of a jar file, copying the unmodified ones as they are
+         */
+        private static void relocateJar(ByteBuffer zip, List<RawZip.Entry> entries, File output, RelocationRules rules, OutputFormat format, ExecutorService executor) throws IOException {
+            ClassRewriter rewriter = new ClassRewriter(rules);
+            Set<String> resources = new HashSet<>();
+            // Inflaters and deflaters used by the transformations, reused from one class to the next
+            Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+            Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+            // Entries waiting to be written, in order
+            Deque<PendingEntry> pending = new ArrayDeque<>();
+            int window = executor == null ? 0 : PENDING_ENTRIES;
+            // Set on failure: the transformations not started yet are skipped
+            AtomicBoolean aborted = new AtomicBoolean();
+
+            try (RawZip.EntryWriter writer = RawZip.writer(output.toPath(), format)) {
+                for (RawZip.Entry entry : entries) {
+                    String name = entry.name;
+                    if (name.equals("META-INF/INDEX.LIST") || entry.isDirectory() || isSignatureFile(name)) {
+                        continue;
+                    }
+
+                    String mappedName = rules.mapInternalName(name);
+                    for (String directory : newDirectories(mappedName, resources)) {
+                        pending.add(new PendingEntry(null, directory + "/", null));
+                    }
+
+                    if (name.endsWith(".class")) {
+                        String className = rules.mapInternalName(name.substring(0, name.indexOf('.'))) + ".class";
+                        Callable<byte[][]> transformation = () -> aborted.get() ? null
+                                : transformClass(zip, entry, rules, rewriter, format == OutputFormat.JAR, inflaters, deflaters);
+                        pending.add(new PendingEntry(entry, className, submit(executor, transformation)));
+                    } else if (resources.add(mappedName)) {
+                        pending.add(new PendingEntry(entry, mappedName, null));
+                    }
+                    while (pending.size() > window) {
+                        pending.poll().write(writer, zip);
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    pending.poll().write(writer, zip);
+                }
+                writer.finish();
+            } catch (IOException | RuntimeException e) {
+                aborted.set(true);
+                deleteRecursively(output.toPath());
+                throw e;
+            } finally {
+                // Wait for the pending transformations, before the mapping and the inflaters are released
+                // (they are not cancelled: a cancelled task may still be running)
+                for (PendingEntry entry : pending) {
+                    entry.await();
+                }
+                inflaters.forEach(Inflater::end);
+                deflaters.forEach(Deflater::end);
+            }
+        }
+
+        /**
+         * Transform a class
+         *
+         * @return null if the class is unchanged, else the rewritten class and, if compressed, its compressed form
+         */
+        private static byte[][] transformClass(ByteBuffer zip, RawZip.Entry entry, RelocationRules rules, ClassRewriter rewriter, boolean compress,
+                                               Queue<Inflater> inflaters, Queue<Deflater> deflaters) throws IOException {
+            Inflater inflater = inflaters.poll();
+            byte[] bytes;
+            try {
+                bytes = RawZip.read(zip, entry, inflater != null ? inflater : (inflater = new Inflater(true)));
+            } finally {
+                inflaters.add(inflater);
+            }
+
+            byte[] rewritten;
+            try {
+                rewritten = rules.isReferencedBy(bytes) ? rewriter.rewrite(bytes) : bytes;
+            } catch (RuntimeException e) {
+                throw new RelocatorException("Error processing class " + entry.name, e);
+            }
+            if (rewritten == bytes) {
+                return null;
+            }
+            if (!compress) {
+                return new byte[][]{rewritten};
+            }
+
+            Deflater deflater = deflaters.poll();
+            try {
+                return new byte[][]{rewritten, RawZip.deflate(rewritten, deflater != null ? deflater : (deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)))};
+            } finally {
+                deflaters.add(deflater);
+            }
+        }
+
+        /**
+         * Run a task with an executor, or right away if there is no executor
+         */
+        private static <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+            if (executor == null) {
+                FutureTask<T> future = new FutureTask<>(task);
+                future.run();
+                return future;
+            }
+            return executor.submit(task);
+        }
+
+        /**
+         * Entry of a relocated jar file, waiting to be written
+         */
+        private static class PendingEntry {
+            // Input entry, null for a directory
+            final RawZip.Entry entry;
+            final String name;
+            // Transformation of a class, null for other entries
+            final Future<byte[][]> transformation;
+
+            PendingEntry(RawZip.Entry entry, String name, Future<byte[][]> transformation) {
+                this.entry = entry;
+                this.name = name;
+                this.transformation = transformation;
+            }
+
+            void write(RawZip.EntryWriter writer, ByteBuffer zip) throws IOException {
+                if (entry == null) {
+                    writer.directory(name);
+                    return;
+                }
+                byte[][] transformed = transformation != null ? get() : null;
+                if (transformed == null) {
+                    writer.copy(zip, entry, name);
+                } else {
+                    writer.write(name, transformed[0], entry.dosTime, transformed.length > 1 ? transformed[1] : null);
+                }
+            }
+
+            private byte[][] get() throws IOException {
+                try {
+                    return transformation.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while relocating " + entry.name);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RelocatorException("Error processing class " + entry.name, cause);
+                }
+            }
+
+            /**
+             * Wait for the transformation to end, whatever its result
+             */
+            void await() {
+                if (transformation instanceof ForkJoinTask) {
+                    ((ForkJoinTask<?>) transformation).quietlyJoin();
+                } else if (transformation != null) {
+                    try {
+                        transformation.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ignored) {
+                        // Already reported
+                    }
+                }
+            }
+        }
+
+        /**
+         * Relocate a jar file through java.util.zip, inflating and deflating every entry
+         */
+        private static void relocateJarStream(File input, File output, RelocationRules rules) throws IOException {
+            ClassRewriter rewriter = new ClassRewriter(rules);
+            Set<String> resources = new HashSet<>();
+
+            try (
+                    JarFile jarIn = new JarFile(input, false);
+                    JarOutputStream jarOut = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(output), Downloader.BUFFER_SIZE))
+            ) {
+                for (Enumeration<JarEntry> entries = jarIn.entries(); entries.hasMoreElements(); ) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.equals("META-INF/INDEX.LIST") || entry.isDirectory() || isSignatureFile(name)) {
+                        continue;
+                    }
+
+                    String mappedName = rules.mapInternalName(name);
+                    addDirectories(jarOut, mappedName, resources);
+
+                    try (InputStream entryIn = jarIn.getInputStream(entry)) {
+                        if (name.endsWith(".class")) {
+                            byte[] bytes;
+                            try {
+                                bytes = rewriter.rewrite(readAll(entryIn, entry.getSize()));
+                            } catch (RuntimeException e) {
+                                throw new RelocatorException("Error processing class " + name, e);
+                            }
+                            JarEntry jarEntry = new JarEntry(rules.mapInternalName(name.substring(0, name.indexOf('.'))) + ".class");
+                            jarEntry.setTime(entry.getTime());
+                            jarOut.putNextEntry(jarEntry);
+                            jarOut.write(bytes);
+                        } else if (resources.add(mappedName)) {
+                            JarEntry jarEntry = new JarEntry(mappedName);
+                            jarEntry.setTime(entry.getTime());
+                            jarOut.putNextEntry(jarEntry);
+                            byte[] buffer = new byte[8192];
+                            int count;
+                            while ((count = entryIn.read(buffer)) != -1) {
+                                jarOut.write(buffer, 0, count);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(output.toPath());
+                throw e;
+            }
+        }
+
+        /**
+         * Check whether a jar file has anything to relocate
+         * <p>
+         * The entry names are read from the central directory, and the classes are
+         * searched for the patterns of the rules. This is much faster than relocating
+         * the jar file, and is conservative: any class containing a pattern, whatever
+         * where it is used, needs to be relocated.
+         *
+         * @param input jar file
+         * @param rules relocation rules
+         * @return true if at least one entry name or class would be relocated
+         * @throws IOException if the jar cannot be read
+         */
+        static boolean needsRelocation(File input, RelocationRules rules) throws IOException {
+            if (rules.isEmpty()) {
+                return false;
+            }
+            try (MappedFile mappedFile = MappedFile.open(input.toPath())) {
+                List<RawZip.Entry> entries = mappedFile != null ? RawZip.entries(mappedFile.buffer()) : null;
+                if (entries != null) {
+                    // Entry names
+                    for (RawZip.Entry entry : entries) {
+                        if (!rules.mapInternalName(entry.name).equals(entry.name)) {
+                            return true;
+                        }
+                    }
+                    // Classes
+                    Inflater inflater = new Inflater(true);
+                    try {
+                        for (RawZip.Entry entry : entries) {
+                            if (entry.name.endsWith(".class") && rules.isReferencedBy(RawZip.read(mappedFile.buffer(), entry, inflater))) {
+                                return true;
+                            }
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                    return false;
+                }
+            }
+            try (ZipFile zipFile = new ZipFile(input)) {
+                // Entry names
+                for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                    String name = entries.nextElement().getName();
+                    if (!rules.mapInternalName(name).equals(name)) {
+                        return true;
+                    }
+                }
+                // Classes
+                for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                            if (rules.isReferencedBy(readAll(inputStream, entry.getSize()))) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Convert a jar file to another format, keeping all its entries
+         *
+         * @param input  jar file
+         * @param output converted jar file, or folder
+         * @param format output format
+         * @throws IOException if the jar cannot be read or written
+         */
+        static void convert(File input, File output, OutputFormat format) throws IOException {
+            try (RawZip.EntryWriter writer = RawZip.writer(output.toPath(), format)) {
+                try (MappedFile mappedFile = MappedFile.open(input.toPath())) {
+                    List<RawZip.Entry> entries = mappedFile != null ? RawZip.entries(mappedFile.buffer()) : null;
+                    if (entries != null) {
+                        for (RawZip.Entry entry : entries) {
+                            if (entry.isDirectory()) {
+                                writer.directory(entry.name);
+                            } else {
+                                writer.copy(mappedFile.buffer(), entry, entry.name);
+                            }
+                        }
+                        writer.finish();
+                        return;
+                    }
+                }
+                try (ZipFile zipFile = new ZipFile(input)) {
+                    for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                        ZipEntry entry = entries.nextElement();
+                        if (entry.isDirectory()) {
+                            writer.directory(entry.getName());
+                        } else {
+                            try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                                writer.write(entry.getName(), readAll(inputStream, entry.getSize()), RawZip.dosTime(entry.getTime()));
+                            }
+                        }
+                    }
+                }
+                writer.finish();
+            } catch (IOException | RuntimeException e) {
+                deleteRecursively(output.toPath());
+                throw e;
+            }
+        }
+
+        /**
+         * Delete a file, or a folder and its content
+         *
+         * @param path file or folder to delete
+         * @throws IOException if a file cannot be deleted
+         */
+        static void deleteRecursively(Path path) throws IOException {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                    for (Path child : children) {
+                        deleteRecursively(child);
+                    }
+                }
+            }
+            Files.deleteIfExists(path);
+        }
+
+        /**
+         * Hard link a file, or copy it if links are not supported
+         *
+         * @param source file to link
+         * @param target link to create
+         * @throws IOException if the file cannot be linked nor copied
+         */
+        static void linkOrCopy(Path source, Path target) throws IOException {
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, source);
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Add the missing parent directory entries of a jar entry
+         */
+        private static void addDirectories(JarOutputStream jarOut, String name, Set<String> directories) throws IOException {
+            int index = name.lastIndexOf('/');
+            if (index == -1) {
+                return;
+            }
+            String parent = name.substring(0, index);
+            if (!directories.contains(parent)) {
+                addDirectories(jarOut, parent, directories);
+                JarEntry jarEntry = new JarEntry(parent + "/");
+                jarEntry.setTime(RawZip.javaTime(RawZip.DOS_EPOCH));
+                jarOut.putNextEntry(jarEntry);
+                directories.add(parent);
+            }
+        }
+
+        /**
+         * @return the missing parent directories of a jar entry, parents first
+         */
+        private static List<String> newDirectories(String name, Set<String> directories) {
+            List<String> newDirectories = new ArrayList<>();
+            int index = name.lastIndexOf('/');
+            while (index != -1 && directories.add(name.substring(0, index))) {
+                newDirectories.add(0, name.substring(0, index));
+                index = name.lastIndexOf('/', index - 1);
+            }
+            return newDirectories;
+        }
+
+        /**
+         * @param name jar entry name
+         * @return true if the entry is a jar signature file
+         */
+        static boolean isSignatureFile(String name) {
+            if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) {
+                return false;
+            }
+            String upperName = name.toUpperCase(Locale.ROOT);
+            return upperName.startsWith("META-INF/SIG-") || upperName.endsWith(".SF") || upperName.endsWith(".DSA") || upperName.endsWith(".RSA") || upperName.endsWith(".EC");
+        }
+
+        /**
+         * Read a stream until its end
+         *
+         * @param inputStream stream to read
+         * @param size        expected size, -1 if unknown
+         * @return the bytes read
+         */
+        static byte[] readAll(InputStream inputStream, long size) throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+
+    /**
+     * Relocation rules, as applied by jar-relocator
+     * <p>
+     * A rule applies to any name starting with its pattern, and accepted by its includes
+     * and excludes. The first matching rule, in the order the relocations were added, is
+     * used. The patterns are compiled once into prefix trees, so the cost of a lookup
+     * depends on the length of the name rather than on the number of rules.
+     */
+    static class RelocationRules {
+
+        // Relocations, in order
+        private final List<Relocation> relocations;
+        // Class names (com.google)
+        private final String[] patterns;
+        private final String[] relocatedPatterns;
+        // Paths and internal class names (com/google)
+        private final String[] pathPatterns;
+        private final String[] relocatedPathPatterns;
+        // Includes and excludes, as path patterns (com/google/gson/**), null if there are none
+        private final String[][] includes;
+        private final String[][] excludes;
+        // Path patterns of the rules
+        private final Trie trie = new Trie();
+        // Both forms of the patterns, as encoded in a class file
+        private final Trie encodedPatterns = new Trie();
+        private final boolean[] encodedFirstBytes = new boolean[256];
+
+        RelocationRules(Collection<Relocation> relocations) {
+            requireNonNull(relocations, "relocations cannot be null.");
+            this.relocations = Collections.unmodifiableList(new ArrayList<>(relocations));
+            int size = relocations.size();
+            this.patterns = new String[size];
+            this.relocatedPatterns = new String[size];
+            this.pathPatterns = new String[size];
+            this.relocatedPathPatterns = new String[size];
+            this.includes = new String[size][];
+            this.excludes = new String[size][];
+            int i = 0;
+            for (Relocation relocation : this.relocations) {
+                patterns[i] = relocation.pattern.replace('/', '.');
+                relocatedPatterns[i] = relocation.relocatedPattern.replace('/', '.');
+                pathPatterns[i] = relocation.pattern.replace('.', '/');
+                relocatedPathPatterns[i] = relocation.relocatedPattern.replace('.', '/');
+                includes[i] = normalizePatterns(relocation.includes);
+                excludes[i] = normalizePatterns(relocation.excludes);
+                trie.add(pathPatterns[i], i);
+                for (String pattern : new String[]{patterns[i], pathPatterns[i]}) {
+                    byte[] encoded = encode(pattern);
+                    StringBuilder key = new StringBuilder(encoded.length);
+                    for (byte b : encoded) {
+                        key.append((char) (b & 0xFF));
+                    }
+                    encodedPatterns.add(key, i);
+                    if (encoded.length > 0) {
+                        encodedFirstBytes[encoded[0] & 0xFF] = true;
+                    }
+                }
+                i++;
+            }
+        }
+
+        /**
+         * @return the relocations, in order
+         */
+        List<Relocation> relocations() {
+            return relocations;
+        }
+
+        /**
+         * @return a description of the relocations, one per line
+         */
+        String describe() {
+            StringBuilder builder = new StringBuilder();
+            for (Relocation relocation : relocations) {
+                builder.append(relocation.pattern).append(" -> ").append(relocation.relocatedPattern);
+                if (!relocation.includes.isEmpty()) {
+                    builder.append(" include ").append(relocation.includes);
+                }
+                if (!relocation.excludes.isEmpty()) {
+                    builder.append(" exclude ").append(relocation.excludes);
+                }
+                builder.append('\n');
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Convert class name patterns to path patterns, the way jar-relocator does:
+         * com.google.gson.* matches the classes of the package and the package itself
+         *
+         * @return the path patterns, or null if there is no pattern
+         */
+        private static String[] normalizePatterns(Collection<String> classPatterns) {
+            if (classPatterns.isEmpty()) {
+                return null;
+            }
+            Set<String> normalized = new LinkedHashSet<>();
+            for (String classPattern : classPatterns) {
+                String pathPattern = classPattern.replace('.', '/');
+                normalized.add(pathPattern);
+                if (pathPattern.endsWith("/*")) {
+                    normalized.add(pathPattern.substring(0, pathPattern.lastIndexOf('/')));
+                }
+            }
+            normalized.addAll(classPatterns);
+            return normalized.toArray(new String[0]);
+        }
+
+        /**
+         * @return a string encoded in modified UTF-8, as in a class file constant pool
+         */
+        private static byte[] encode(String value) {
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                new DataOutputStream(outputStream).writeUTF(value);
+                return Arrays.copyOfRange(outputStream.toByteArray(), 2, outputStream.size());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid pattern: " + value, e);
+            }
+        }
+
+        /**
+         * Search a class file for the patterns of the rules
+         *
+         * @param bytes class file
+         * @return true if the class file contains at least one pattern
+         */
+        boolean isReferencedBy(byte[] bytes) {
+            if (encodedPatterns.rules.length > 0) {
+                // Empty pattern
+                return true;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (!encodedFirstBytes[bytes[i] & 0xFF]) {
+                    continue;
+                }
+                Trie node = encodedPatterns;
+                for (int j = i; j < bytes.length && (node = node.child((char) (bytes[j] & 0xFF))) != null; j++) {
+                    if (node.rules.length > 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if there is no rule
+         */
+        boolean isEmpty() {
+            return patterns.length == 0;
+        }
+
+        /**
+         * Map an internal class name (com/google/gson/Gson) or a path (com/google/gson/Gson.class)
+         *
+         * @param name name to map
+         * @return the mapped name, or the name itself if no rule applies
+         */
+        String mapInternalName(String name) {
+            String mapped = relocate(name, false);
+            return mapped != null ? mapped : name;
+        }
+
+        /**
+         * Map a field or method descriptor
+         *
+         * @param descriptor descriptor to map
+         * @return the mapped descriptor, or the descriptor itself if no rule applies
+         */
+        String mapDescriptor(String descriptor) {
+            int start = descriptor.indexOf('L');
+            if (start == -1) {
+                return descriptor;
+            }
+            StringBuilder builder = new StringBuilder(descriptor.length() + 16);
+            int i = 0;
+            while (start != -1) {
+                int end = descriptor.indexOf(';', start);
+                builder.append(descriptor, i, start + 1).append(mapInternalName(descriptor.substring(start + 1, end))).append(';');
+                i = end + 1;
+                start = descriptor.indexOf('L', i);
+            }
+            builder.append(descriptor, i, descriptor.length());
+            String mapped = builder.toString();
+            return mapped.equals(descriptor) ? descriptor : mapped;
+        }
+
+        /**
+         * Map a class, method or field generic signature
+         *
+         * @param signature signature to map
+         * @return the mapped signature, or the signature itself if no rule applies
+         */
+        String mapSignature(String signature) {
+            if (signature.indexOf('L') == -1) {
+                return signature;
+            }
+            StringBuilder builder = new StringBuilder(signature.length() + 16);
+            int pos = 0;
+            // Formal type parameters
+            if (signature.charAt(pos) == '<') {
+                builder.append('<');
+                pos++;
+                while (signature.charAt(pos) != '>') {
+                    int colon = signature.indexOf(':', pos);
+                    builder.append(signature, pos, colon);
+                    pos = colon;
+                    while (pos < signature.length() && signature.charAt(pos) == ':') {
+                        builder.append(':');
+                        pos++;
+                        char c = signature.charAt(pos);
+                        if (c == 'L' || c == '[' || c == 'T') {
+                            pos = mapTypeSignature(signature, pos, builder);
+                        }
+                    }
+                }
+                builder.append('>');
+                pos++;
+            }
+            // Method parameters
+            if (signature.charAt(pos) == '(') {
+                builder.append('(');
+                pos++;
+                while (signature.charAt(pos) != ')') {
+                    pos = mapTypeSignature(signature, pos, builder);
+                }
+                builder.append(')');
+                pos++;
+            }
+            // Field type, super class and interfaces, or method return type and exceptions
+            while (pos < signature.length()) {
+                if (signature.charAt(pos) == '^') {
+                    builder.append('^');
+                    pos++;
+                }
+                pos = mapTypeSignature(signature, pos, builder);
+            }
+            String mapped = builder.toString();
+            return mapped.equals(signature) ? signature : mapped;
+        }
+
+        /**
+         * Map the type signature starting at pos
+         *
+         * @return the position following the type signature
+         */
+        private int mapTypeSignature(String signature, int pos, StringBuilder builder) {
+            char c = signature.charAt(pos);
+            switch (c) {
+                case '[':
+                    builder.append(c);
+                    return mapTypeSignature(signature, pos + 1, builder);
+                case 'T': {
+                    int end = signature.indexOf(';', pos) + 1;
+                    builder.append(signature, pos, end);
+                    return end;
+                }
+                case 'L': {
+                    // Outer class name
+                    int end = nameEnd(signature, pos + 1);
+                    builder.append('L').append(mapInternalName(signature.substring(pos + 1, end)));
+                    pos = end;
+                    while (true) {
+                        c = signature.charAt(pos);
+                        if (c == ';') {
+                            builder.append(';');
+                            return pos + 1;
+                        } else if (c == '.') {
+                            // Inner class simple name
+                            end = nameEnd(signature, pos + 1);
+                            builder.append(signature, pos, end);
+                            pos = end;
+                        } else if (c == '<') {
+                            // Type arguments
+                            builder.append('<');
+                            pos++;
+                            while (signature.charAt(pos) != '>') {
+                                c = signature.charAt(pos);
+                                if (c == '*') {
+                                    builder.append('*');
+                                    pos++;
+                                } else {
+                                    if (c == '+' || c == '-') {
+                                        builder.append(c);
+                                        pos++;
+                                    }
+                                    pos = mapTypeSignature(signature, pos, builder);
+                                }
+                            }
+                            builder.append('>');
+                            pos++;
+                        } else {
+                            throw new IllegalArgumentException("Invalid signature: " + signature);
+                        }
+                    }
+                }
+                default:
+                    // Base type
+                    builder.append(c);
+                    return pos + 1;
+            }
+        }
+
+        private static int nameEnd(String signature, int pos) {
+            while (true) {
+                char c = signature.charAt(pos);
+                if (c == ';' || c == '<' || c == '.') {
+                    return pos;
+                }
+                pos++;
+            }
+        }
+
+        /**
+         * Map a string constant, which may be a class name (com.google.gson.Gson),
+         * a path (com/google/gson/version.properties) or a descriptor
+         *
+         * @param value string to map
+         * @return the mapped string, or the string itself if no rule applies
+         */
+        String mapValue(String value) {
+            String mapped = relocate(value, true);
+            return mapped != null ? mapped : value;
+        }
+
+        private String relocate(String name, boolean isClass) {
+            // Descriptor (Lcom/google/gson/Gson; or [[Lcom/google/gson/Gson;)
+            String prefix = "";
+            String suffix = "";
+            int dimensions = 0;
+            while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+                dimensions++;
+            }
+            if (name.length() > dimensions + 2 && name.charAt(dimensions) == 'L' && name.endsWith(";")) {
+                prefix = name.substring(0, dimensions + 1);
+                suffix = ";";
+                name = name.substring(dimensions + 1, name.length() - 1);
+            }
+
+            int rule = firstRule(name);
+            if (isClass && name.indexOf('/') == -1) {
+                // Class name, unless a previous rule relocates it as a path
+                int classRule = firstRule(name.replace('.', '/'));
+                if (classRule != -1 && (rule == -1 || classRule <= rule)) {
+                    return prefix + relocatedPatterns[classRule] + name.substring(patterns[classRule].length()) + suffix;
+                }
+            }
+            if (rule == -1) {
+                return null;
+            }
+            int start = name.startsWith(pathPatterns[rule]) ? 0 : 1;
+            return prefix + name.substring(0, start) + relocatedPathPatterns[rule] + name.substring(start + pathPatterns[rule].length()) + suffix;
+        }
+
+        /**
+         * Find the first rule relocating a path: its pattern starts the path (without its
+         * .class extension), or the path following a leading '/', and its includes and
+         * excludes accept the path
+         *
+         * @return the index of the rule, or -1 if no rule applies
+         */
+        private int firstRule(String path) {
+            int end = path.endsWith(".class") ? path.length() - 6 : path.length();
+            int rule = firstRule(path, 0, end, -1);
+            if (end > 0 && path.charAt(0) == '/') {
+                rule = firstRule(path, 1, end, rule);
+            }
+            return rule;
+        }
+
+        private int firstRule(String path, int offset, int end, int first) {
+            Trie node = trie;
+            int i = offset;
+            while (node != null) {
+                for (int rule : node.rules) {
+                    if (first != -1 && rule >= first) {
+                        break;
+                    }
+                    if (isAccepted(path, end, rule)) {
+                        first = rule;
+                        break;
+                    }
+                }
+                node = i < end ? node.child(path.charAt(i++)) : null;
+            }
+            return first;
+        }
+
+        private boolean isAccepted(String path, int end, int rule) {
+            if (includes[rule] == null && excludes[rule] == null) {
+                return true;
+            }
+            String name = path.substring(0, end);
+            if (includes[rule] != null && !matchesAny(includes[rule], name)) {
+                return false;
+            }
+            return excludes[rule] == null || !matchesAny(excludes[rule], name);
+        }
+
+        private static boolean matchesAny(String[] pathPatterns, String path) {
+            for (String pathPattern : pathPatterns) {
+                if (matchPath(pathPattern, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Match a path against an Ant-style pattern ('**' matches any number of folders,
+         * '*' and '?' match characters of a folder name), or against a regular expression
+         * when the pattern is written %regex[...]
+         *
+         * @param pattern pattern
+         * @param path    path to match
+         * @return true if the path matches the pattern
+         */
+        static boolean matchPath(String pattern, String path) {
+            if (pattern.length() > 8 && pattern.startsWith("%regex[") && pattern.endsWith("]")) {
+                return path.matches(pattern.substring(7, pattern.length() - 1));
+            }
+            if (pattern.length() > 6 && pattern.startsWith("%ant[") && pattern.endsWith("]")) {
+                pattern = pattern.substring(5, pattern.length() - 1);
+            }
+            if (pattern.startsWith("/") != path.startsWith("/")) {
+                return false;
+            }
+            return matchFolders(tokenize(pattern), 0, tokenize(path), 0);
+        }
+
+        private static boolean matchFolders(String[] patterns, int p, String[] names, int n) {
+            while (p < patterns.length) {
+                if (patterns[p].equals("**")) {
+                    for (int i = n; i <= names.length; i++) {
+                        if (matchFolders(patterns, p + 1, names, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (n == names.length || !matchName(patterns[p], 0, names[n], 0)) {
+                    return false;
+                }
+                p++;
+                n++;
+            }
+            return n == names.length;
+        }
+
+        private static boolean matchName(String pattern, int p, String name, int n) {
+            while (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    for (int i = n; i <= name.length(); i++) {
+                        if (matchName(pattern, p + 1, name, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (n == name.length() || (c != '?' && c != name.charAt(n))) {
+                    return false;
+                }
+                p++;
+                n++;
+            }
+            return n == name.length();
+        }
+
+        private static String[] tokenize(String path) {
+            List<String> tokens = new ArrayList<>();
+            for (String token : path.split("/")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+            return tokens.toArray(new String[0]);
+        }
+
+        /**
+         * Prefix tree, each node holding the rules whose pattern ends there
+         */
+        static class Trie {
+            // Sorted characters of the children
+            private char[] labels = new char[0];
+            private Trie[] children = new Trie[0];
+            // Rules, in ascending order
+            private int[] rules = new int[0];
+
+            void add(CharSequence key, int rule) {
+                Trie node = this;
+                for (int i = 0; i < key.length(); i++) {
+                    char c = key.charAt(i);
+                    Trie child = node.child(c);
+                    if (child == null) {
+                        int index = -Arrays.binarySearch(node.labels, c) - 1;
+                        child = new Trie();
+                        node.labels = insert(node.labels, index, c);
+                        Trie[] children = Arrays.copyOf(node.children, node.children.length + 1);
+                        System.arraycopy(children, index, children, index + 1, children.length - index - 1);
+                        children[index] = child;
+                        node.children = children;
+                    }
+                    node = child;
+                }
+                int[] rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+                rules[rules.length - 1] = rule;
+                node.rules = rules;
+            }
+
+            Trie child(char c) {
+                int index = Arrays.binarySearch(labels, c);
+                return index >= 0 ? children[index] : null;
+            }
+
+            private static char[] insert(char[] array, int index, char c) {
+                char[] result = new char[array.length + 1];
+                System.arraycopy(array, 0, result, 0, index);
+                result[index] = c;
+                System.arraycopy(array, index, result, index + 1, array.length - index);
+                return result;
+            }
+        }
+    }
+
+
+    /**
+     * Rewrite the class names used by a class file, directly in its constant pool
+     * <p>
+     * The class file is not parsed beyond what is needed to know how each Utf8 entry of
+     * the constant pool is used (class name, descriptor, signature, string constant or
+     * other name). Entries are rewritten in place, except when the same entry is used in
+     * ways that map to different values: new entries are then added to the constant pool.
+     * Everything else (code, frames, attributes) is copied unchanged.
+     */
+    static class ClassRewriter {
+
+        // Constant pool tags
+        static final int CONSTANT_UTF8 = 1;
+        static final int CONSTANT_INTEGER = 3;
+        static final int CONSTANT_FLOAT = 4;
+        static final int CONSTANT_LONG = 5;
+        static final int CONSTANT_DOUBLE = 6;
+        static final int CONSTANT_CLASS = 7;
+        static final int CONSTANT_STRING = 8;
+        static final int CONSTANT_FIELDREF = 9;
+        static final int CONSTANT_METHODREF = 10;
+        static final int CONSTANT_INTERFACE_METHODREF = 11;
+        static final int CONSTANT_NAME_AND_TYPE = 12;
+        static final int CONSTANT_METHOD_HANDLE = 15;
+        static final int CONSTANT_METHOD_TYPE = 16;
+        static final int CONSTANT_DYNAMIC = 17;
+        static final int CONSTANT_INVOKE_DYNAMIC = 18;
+        static final int CONSTANT_MODULE = 19;
+        static final int CONSTANT_PACKAGE = 20;
+
+        // Usages of the Utf8 entries
+        static final int USAGE_NAME = 0;
+        static final int USAGE_CLASS = 1;
+        static final int USAGE_DESCRIPTOR = 2;
+        static final int USAGE_SIGNATURE = 3;
+        static final int USAGE_VALUE = 4;
+
+        private final RelocationRules rules;
+
+        ClassRewriter(RelocationRules rules) {
+            this.rules = requireNonNull(rules, "rules cannot be null.");
+        }
+
+        /**
+         * Rewrite a class file
+         *
+         * @param bytes class file
+         * @return the rewritten class file, or the same array if nothing has been relocated
+         */
+        byte[] rewrite(byte[] bytes) {
+            if (rules.isEmpty()) {
+                return bytes;
+            }
+            return new Rewrite(bytes).run();
+        }
+
+        /**
+         * Map a Utf8 entry value according to its usage
+         */
+        String map(String value, int usage) {
+            switch (usage) {
+                case USAGE_CLASS:
+                    return value.startsWith("[") ? rules.mapDescriptor(value) : rules.mapInternalName(value);
+                case USAGE_DESCRIPTOR:
+                    return rules.mapDescriptor(value);
+                case USAGE_SIGNATURE:
+                    return rules.mapSignature(value);
+                case USAGE_VALUE:
+                    return rules.mapValue(value);
+                default:
+                    return value;
+            }
+        }
+
+        /**
+         * State of the rewriting of a single class file
+         */
+        private class Rewrite {
+
+            private final byte[] bytes;
+            // Copy of the class file with the redirected references, if any
+            private byte[] patched;
+            // Offset of each constant pool entry
+            private final int[] offsets;
+            // Offset following the constant pool
+            private final int poolEnd;
+            // Decoded Utf8 entries
+            private final String[] strings;
+            // References to Utf8 entries: position of the u2 index, Utf8 index and usage
+            private int[] sites = new int[256];
+            private int siteCount = 0;
+
+            Rewrite(byte[] bytes) {
+                this.bytes = bytes;
+                if (readInt(0) != 0xCAFEBABE) {
+                    throw new IllegalArgumentException("Not a class file");
+                }
+                int count = readUnsignedShort(8);
+                this.offsets = new int[count];
+                this.strings = new String[count];
+                int offset = 10;
+                for (int i = 1; i < count; i++) {
+                    offsets[i] = offset;
+                    int tag = bytes[offset];
+                    switch (tag) {
+                        case CONSTANT_UTF8:
+                            offset += 3 + readUnsignedShort(offset + 1);
+                            break;
+                        case CONSTANT_CLASS:
+                        case CONSTANT_STRING:
+                        case CONSTANT_METHOD_TYPE:
+                        case CONSTANT_MODULE:
+                        case CONSTANT_PACKAGE:
+                            offset += 3;
+                            break;
+                        case CONSTANT_METHOD_HANDLE:
+                            offset += 4;
+                            break;
+                        case CONSTANT_INTEGER:
+                        case CONSTANT_FLOAT:
+                        case CONSTANT_FIELDREF:
+                        case CONSTANT_METHODREF:
+                        case CONSTANT_INTERFACE_METHODREF:
+                        case CONSTANT_NAME_AND_TYPE:
+                        case CONSTANT_DYNAMIC:
+                        case CONSTANT_INVOKE_DYNAMIC:
+                            offset += 5;
+                            break;
+                        case CONSTANT_LONG:
+                        case CONSTANT_DOUBLE:
+                            offset += 9;
+                            i++;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+                    }
+                }
+                this.poolEnd = offset;
+            }
+
+            byte[] run() {
+                collectPoolSites();
+                collectClassSites();
+
+                // Map each referenced Utf8 entry, for each of its usages
+                int count = offsets.length;
+                String[] values = new String[count];
+                Map<String, Integer> existing = null;
+                List<String> newEntries = new ArrayList<>();
+                boolean modified = false;
+
+                // Value of each entry: the value of its first usage, unless another usage keeps the original value
+                boolean[] keep = new boolean[count];
+                for (int s = 0; s < siteCount; s++) {
+                    int index = sites[s * 3 + 1];
+                    int usage = sites[s * 3 + 2];
+                    if (usage == USAGE_NAME) {
+                        keep[index] = true;
+                    } else if (values[index] == null && !keep[index]) {
+                        values[index] = map(utf8(index), usage);
+                    }
+                }
+
+                for (int s = 0; s < siteCount; s++) {
+                    int index = sites[s * 3 + 1];
+                    int usage = sites[s * 3 + 2];
+                    if (usage == USAGE_NAME) {
+                        continue;
+                    }
+                    String original = utf8(index);
+                    String current = keep[index] || values[index] == null ? original : values[index];
+                    String mapped = map(original, usage);
+                    if (mapped.equals(current)) {
+                        continue;
+                    }
+
+                    // This usage needs its own entry
+                    if (existing == null) {
+                        existing = new HashMap<>();
+                    }
+                    Integer newIndex = existing.get(mapped);
+                    if (newIndex == null) {
+                        newIndex = count + newEntries.size();
+                        newEntries.add(mapped);
+                        existing.put(mapped, newIndex);
+                    }
+                    if (newIndex > 0xFFFF) {
+                        throw new IllegalStateException("Too many constants");
+                    }
+                    writeShort(sites[s * 3], newIndex);
+                    modified = true;
+                }
+
+                for (int i = 1; i < count; i++) {
+                    if (values[i] != null && !keep[i] && !values[i].equals(utf8(i))) {
+                        modified = true;
+                        break;
+                    }
+                }
+                if (!modified) {
+                    return bytes;
+                }
+
+                // Write the class file
+                byte[] bytes = patched != null ? patched : this.bytes;
+                try {
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length + 256);
+                    DataOutputStream output = new DataOutputStream(outputStream);
+                    output.write(bytes, 0, 8);
+                    output.writeShort(count + newEntries.size());
+                    for (int i = 1; i < count; i++) {
+                        int offset = offsets[i];
+                        if (offset == 0) {
+                            // Second slot of a long or double
+                            continue;
+                        }
+                        int end = nextOffset(i);
+                        if (bytes[offset] == CONSTANT_UTF8 && values[i] != null && !keep[i] && !values[i].equals(utf8(i))) {
+                            output.writeByte(CONSTANT_UTF8);
+                            output.writeUTF(values[i]);
+                        } else {
+                            output.write(bytes, offset, end - offset);
+                        }
+                    }
+                    for (String entry : newEntries) {
+                        output.writeByte(CONSTANT_UTF8);
+                        output.writeUTF(entry);
+                    }
+                    output.write(bytes, poolEnd, bytes.length - poolEnd);
+                    return outputStream.toByteArray();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write class file", e);
+                }
+            }
+
+            private int nextOffset(int index) {
+                for (int i = index + 1; i < offsets.length; i++) {
+                    if (offsets[i] != 0) {
+                        return offsets[i];
+                    }
+                }
+                return poolEnd;
+            }
+
+            /**
+             * Collect the references from the constant pool
+             */
+            private void collectPoolSites() {
+                for (int i = 1; i < offsets.length; i++) {
+                    int offset = offsets[i];
+                    if (offset == 0) {
+                        continue;
+                    }
+                    switch (bytes[offset]) {
+                        case CONSTANT_CLASS:
+                            addSite(offset + 1, USAGE_CLASS);
+                            break;
+                        case CONSTANT_STRING:
+                            addSite(offset + 1, USAGE_VALUE);
+                            break;
+                        case CONSTANT_METHOD_TYPE:
+                            addSite(offset + 1, USAGE_DESCRIPTOR);
+                            break;
+                        case CONSTANT_NAME_AND_TYPE:
+                            addSite(offset + 1, USAGE_NAME);
+                            addSite(offset + 3, USAGE_DESCRIPTOR);
+                            break;
+                        case CONSTANT_MODULE:
+                        case CONSTANT_PACKAGE:
+                            addSite(offset + 1, USAGE_NAME);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+
+            /**
+             * Collect the references from the fields, methods and attributes
+             */
+            private void collectClassSites() {
+                // Access flags, this class, super class
+                int offset = poolEnd + 6;
+                // Interfaces
+                offset += 2 + 2 * readUnsignedShort(offset);
+                // Fields and methods
+                for (int k = 0; k < 2; k++) {
+                    int members = readUnsignedShort(offset);
+                    offset += 2;
+                    for (int m = 0; m < members; m++) {
+                        addSite(offset + 2, USAGE_NAME);
+                        addSite(offset + 4, USAGE_DESCRIPTOR);
+                        offset = collectAttributes(offset + 6);
+                    }
+                }
+                // Class attributes
+                collectAttributes(offset);
+            }
+
+            /**
+             * Collect the references from an attribute list
+             *
+             * @return the offset following the attributes
+             */
+            private int collectAttributes(int offset) {
+                int attributes = readUnsignedShort(offset);
+                offset += 2;
+                for (int a = 0; a < attributes; a++) {
+                    addSite(offset, USAGE_NAME);
+                    String name = utf8(readUnsignedShort(offset));
+                    int length = readInt(offset + 2);
+                    int start = offset + 6;
+                    switch (name) {
+                        case "Signature":
+                            addSite(start, USAGE_SIGNATURE);
+                            break;
+                        case "SourceFile":
+                            addSite(start, USAGE_NAME);
+                            break;
+                        case "Code": {
+                            int codeLength = readInt(start + 4);
+                            int exceptions = readUnsignedShort(start + 8 + codeLength);
+                            collectAttributes(start + 10 + codeLength + 8 * exceptions);
+                            break;
+                        }
+                        case "LocalVariableTable":
+                        case "LocalVariableTypeTable": {
+                            int usage = name.equals("LocalVariableTable") ? USAGE_DESCRIPTOR : USAGE_SIGNATURE;
+                            int variables = readUnsignedShort(start);
+                            for (int v = 0; v < variables; v++) {
+                                int variable = start + 2 + 10 * v;
+                                addSite(variable + 4, USAGE_NAME);
+                                addSite(variable + 6, usage);
+                            }
+                            break;
+                        }
+                        case "MethodParameters": {
+                            int parameters = bytes[start] & 0xFF;
+                            for (int p = 0; p < parameters; p++) {
+                                if (readUnsignedShort(start + 1 + 4 * p) != 0) {
+                                    addSite(start + 1 + 4 * p, USAGE_NAME);
+                                }
+                            }
+                            break;
+                        }
+                        case "InnerClasses": {
+                            int classes = readUnsignedShort(start);
+                            for (int c = 0; c < classes; c++) {
+                                int innerName = start + 2 + 8 * c + 4;
+                                if (readUnsignedShort(innerName) != 0) {
+                                    addSite(innerName, USAGE_NAME);
+                                }
+                            }
+                            break;
+                        }
+                        case "RuntimeVisibleAnnotations":
+                        case "RuntimeInvisibleAnnotations": {
+                            int annotations = readUnsignedShort(start);
+                            int position = start + 2;
+                            for (int i = 0; i < annotations; i++) {
+                                position = collectAnnotation(position);
+                            }
+                            break;
+                        }
+                        case "RuntimeVisibleParameterAnnotations":
+                        case "RuntimeInvisibleParameterAnnotations": {
+                            int parameters = bytes[start] & 0xFF;
+                            int position = start + 1;
+                            for (int p = 0; p < parameters; p++) {
+                                int annotations = readUnsignedShort(position);
+                                position += 2;
+                                for (int i = 0; i < annotations; i++) {
+                                    position = collectAnnotation(position);
+                                }
+                            }
+                            break;
+                        }
+                        case "RuntimeVisibleTypeAnnotations":
+                        case "RuntimeInvisibleTypeAnnotations": {
+                            int annotations = readUnsignedShort(start);
+                            int position = start + 2;
+                            for (int i = 0; i < annotations; i++) {
+                                position = collectAnnotation(skipTypeAnnotationTarget(position));
+                            }
+                            break;
+                        }
+                        case "AnnotationDefault":
+                            collectElementValue(start);
+                            break;
+                        case "Record": {
+                            int components = readUnsignedShort(start);
+                            int position = start + 2;
+                            for (int c = 0; c < components; c++) {
+                                addSite(position, USAGE_NAME);
+                                addSite(position + 2, USAGE_DESCRIPTOR);
+                                position = collectAttributes(position + 4);
+                            }
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                    offset = start + length;
+                }
+                return offset;
+            }
+
+            /**
+             * @return the offset following the annotation
+             */
+            private int collectAnnotation(int offset) {
+                addSite(offset, USAGE_DESCRIPTOR);
+                int pairs = readUnsignedShort(offset + 2);
+                offset += 4;
+                for (int p = 0; p < pairs; p++) {
+                    addSite(offset, USAGE_NAME);
+                    offset = collectElementValue(offset + 2);
+                }
+                return offset;
+            }
+
+            /**
+             * @return the offset following the element value
+             */
+            private int collectElementValue(int offset) {
+                char tag = (char) bytes[offset];
+                switch (tag) {
+                    case 's':
+                        addSite(offset + 1, USAGE_VALUE);
+                        return offset + 3;
+                    case 'e':
+                        addSite(offset + 1, USAGE_DESCRIPTOR);
+                        addSite(offset + 3, USAGE_NAME);
+                        return offset + 5;
+                    case 'c':
+                        addSite(offset + 1, USAGE_DESCRIPTOR);
+                        return offset + 3;
+                    case '@':
+                        return collectAnnotation(offset + 1);
+                    case '[': {
+                        int values = readUnsignedShort(offset + 1);
+                        offset += 3;
+                        for (int v = 0; v < values; v++) {
+                            offset = collectElementValue(offset);
+                        }
+                        return offset;
+                    }
+                    default:
+                        // Primitive constant
+                        return offset + 3;
+                }
+            }
+
+            /**
+             * @return the offset following the target info and the type path of a type annotation
+             */
+            private int skipTypeAnnotationTarget(int offset) {
+                int targetType = bytes[offset] & 0xFF;
+                offset++;
+                switch (targetType) {
+                    case 0x00:
+                    case 0x01:
+                    case 0x16:
+                        offset += 1;
+                        break;
+                    case 0x10:
+                    case 0x11:
+                    case 0x12:
+                    case 0x17:
+                    case 0x42:
+                    case 0x43:
+                    case 0x44:
+                    case 0x45:
+                    case 0x46:
+                        offset += 2;
+                        break;
+                    case 0x13:
+                    case 0x14:
+                    case 0x15:
+                        break;
+                    case 0x40:
+                    case 0x41:
+                        offset += 2 + 6 * readUnsignedShort(offset);
+                        break;
+                    case 0x47:
+                    case 0x48:
+                    case 0x49:
+                    case 0x4A:
+                    case 0x4B:
+                        offset += 3;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown type annotation target " + targetType);
+                }
+                // Type path
+                return offset + 1 + 2 * (bytes[offset] & 0xFF);
+            }
+
+            private void addSite(int position, int usage) {
+                int index = readUnsignedShort(position);
+                if (index == 0 || index >= offsets.length || offsets[index] == 0 || bytes[offsets[index]] != CONSTANT_UTF8) {
+                    throw new IllegalArgumentException("Invalid Utf8 index " + index);
+                }
+                if (siteCount * 3 + 3 > sites.length) {
+                    sites = Arrays.copyOf(sites, sites.length * 2);
+                }
+                sites[siteCount * 3] = position;
+                sites[siteCount * 3 + 1] = index;
+                sites[siteCount * 3 + 2] = usage;
+                siteCount++;
+            }
+
+            private String utf8(int index) {
+                String value = strings[index];
+                if (value == null) {
+                    int offset = offsets[index];
+                    try {
+                        value = new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, 2 + readUnsignedShort(offset + 1))).readUTF();
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Invalid Utf8 constant " + index, e);
+                    }
+                    strings[index] = value;
+                }
+                return value;
+            }
+
+            private int readUnsignedShort(int offset) {
+                return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+            }
+
+            private int readInt(int offset) {
+                return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+            }
+
+            private void writeShort(int offset, int value) {
+                if (patched == null) {
+                    patched = bytes.clone();
+                }
+                patched[offset] = (byte) (value >>> 8);
+                patched[offset + 1] = (byte) value;
+            }
+        }
+    }
+
+
+    /**
+     * Minimal zip file reader and writer, working on the compressed data of the entries
+     * <p>
+     * It lets the built-in engine copy the entries it does not change without inflating
+     * and deflating them again. Only plain zip files are supported: no zip64, no
+     * encryption, no multi-disk archive, and stored or deflated entries only.
+     */
+    static class RawZip {
+        private RawZip() {
+        }
+
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int END_HEADER = 0x06054b50;
+        private static final int ZIP64_END_LOCATOR = 0x07064b50;
+        private static final int LOCAL_HEADER_SIZE = 30;
+        private static final int CENTRAL_HEADER_SIZE = 46;
+        private static final int END_HEADER_SIZE = 22;
+        private static final int ZIP64_END_LOCATOR_SIZE = 20;
+        private static final int FLAG_ENCRYPTED = 0x0001;
+        private static final int FLAG_UTF8 = 0x0800;
+        private static final int VERSION = 20;
+        private static final long MAX_VALUE = 0xFFFFFFFFL;
+        private static final int MAX_ENTRIES = 0xFFFF;
+
+        static final int STORED = 0;
+        static final int DEFLATED = 8;
+        // MS-DOS date and time of the generated entries (1980-01-01 00:00), so the output is reproducible
+        static final int DOS_EPOCH = (1 << 21) | (1 << 16);
+
+        /**
+         * Entry of a zip file, as described in its central directory
+         */
+        static class Entry {
+            final String name;
+            final int method;
+            // MS-DOS date (high half) and time (low half)
+            final int dosTime;
+            final long crc;
+            final long compressedSize;
+            final long size;
+            final long localHeaderOffset;
+
+            Entry(String name, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+                this.name = name;
+                this.method = method;
+                this.dosTime = dosTime;
+                this.crc = crc;
+                this.compressedSize = compressedSize;
+                this.size = size;
+                this.localHeaderOffset = localHeaderOffset;
+            }
+
+            boolean isDirectory() {
+                return name.endsWith("/");
+            }
+        }
+
+        /**
+         * Read the central directory of a zip file
+         *
+         * @param zip content of the zip file
+         * @return the entries, in the order of the central directory, or null if the
+         * zip file uses a feature which is not supported
+         * @throws IOException if the zip file is truncated
+         */
+        static List<Entry> entries(ByteBuffer zip) throws IOException {
+            long fileSize = zip.limit();
+            if (fileSize < END_HEADER_SIZE) {
+                return null;
+            }
+
+            // The end of central directory record is followed by a comment of at most 64 KiB
+            int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + 0xFFFF);
+            long tailOffset = fileSize - tailSize;
+            ByteBuffer tail = slice(zip, tailOffset, tailSize);
+            int end = tailSize - END_HEADER_SIZE;
+            while (end >= 0 && !(tail.getInt(end) == END_HEADER && end + END_HEADER_SIZE + unsignedShort(tail, end + 20) <= tailSize)) {
+                end--;
+            }
+            if (end < 0 || (end >= ZIP64_END_LOCATOR_SIZE && tail.getInt(end - ZIP64_END_LOCATOR_SIZE) == ZIP64_END_LOCATOR)) {
+                return null;
+            }
+
+            int disk = unsignedShort(tail, end + 4);
+            int directoryDisk = unsignedShort(tail, end + 6);
+            int diskCount = unsignedShort(tail, end + 8);
+            int count = unsignedShort(tail, end + 10);
+            long directorySize = unsignedInt(tail, end + 12);
+            long directoryOffset = unsignedInt(tail, end + 16);
+            if (disk != 0 || directoryDisk != 0 || diskCount != count || count == MAX_ENTRIES || directoryOffset + directorySize != tailOffset + end) {
+                return null;
+            }
+
+            ByteBuffer directory = slice(zip, directoryOffset, directorySize);
+            List<Entry> entries = new ArrayList<>(count);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER) {
+                    return null;
+                }
+                int flags = unsignedShort(directory, position + 8);
+                int method = unsignedShort(directory, position + 10);
+                long compressedSize = unsignedInt(directory, position + 20);
+                long size = unsignedInt(directory, position + 24);
+                int nameLength = unsignedShort(directory, position + 28);
+                int extraLength = unsignedShort(directory, position + 30);
+                int commentLength = unsignedShort(directory, position + 32);
+                long localHeaderOffset = unsignedInt(directory, position + 42);
+                int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+                if ((flags & FLAG_ENCRYPTED) != 0 || (method != STORED && method != DEFLATED) || next > directorySize
+                        || compressedSize == MAX_VALUE || size == MAX_VALUE || localHeaderOffset >= directoryOffset) {
+                    return null;
+                }
+
+                byte[] name = new byte[nameLength];
+                directory.position(position + CENTRAL_HEADER_SIZE);
+                directory.get(name);
+                entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, directory.getInt(position + 12),
+                        unsignedInt(directory, position + 16), compressedSize, size, localHeaderOffset));
+                position = next;
+            }
+            return entries;
+        }
+
+        /**
+         * Read the uncompressed content of an entry
+         *
+         * @param zip      content of the zip file
+         * @param entry    entry to read
+         * @param inflater nowrap inflater, reset before use
+         * @return the content of the entry
+         * @throws IOException if the entry is corrupted
+         */
+        static byte[] read(ByteBuffer zip, Entry entry, Inflater inflater) throws IOException {
+            if (entry.size > Integer.MAX_VALUE - 8) {
+                throw new ZipException("Entry too large: " + entry.name);
+            }
+            byte[] compressed = new byte[(int) entry.compressedSize + (entry.method == DEFLATED ? 1 : 0)];
+            slice(zip, dataOffset(zip, entry), entry.compressedSize).get(compressed, 0, (int) entry.compressedSize);
+
+            byte[] content;
+            if (entry.method == STORED) {
+                content = compressed;
+            } else {
+                // nowrap inflaters may need an extra dummy byte at the end of the input
+                inflater.reset();
+                try {
+                    inflater.setInput(compressed);
+                    content = new byte[(int) entry.size];
+                    int length = 0;
+                    while (length < content.length && !inflater.finished()) {
+                        int count = inflater.inflate(content, length, content.length - length);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        length += count;
+                    }
+                    if (length != content.length || (content.length > 0 && !inflater.finished() && inflater.inflate(new byte[1]) != 0)) {
+                        throw new ZipException("Invalid entry size: " + entry.name);
+                    }
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid entry compressed data: " + entry.name);
+                }
+            }
+            if (content.length != entry.size || crc(content) != entry.crc) {
+                throw new ZipException("Invalid entry: " + entry.name);
+            }
+            return content;
+        }
+
+        /**
+         * @return offset of the compressed data of an entry
+         */
+        private static long dataOffset(ByteBuffer zip, Entry entry) throws IOException {
+            ByteBuffer header = slice(zip, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER) {
+                throw new ZipException("Invalid local header: " + entry.name);
+            }
+            return entry.localHeaderOffset + LOCAL_HEADER_SIZE + unsignedShort(header, 26) + unsignedShort(header, 28);
+        }
+
+        /**
+         * @return a little-endian view of a part of the zip file, without copying it
+         */
+        private static ByteBuffer slice(ByteBuffer zip, long position, long size) throws IOException {
+            if (position < 0 || size < 0 || position + size > zip.limit()) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            ByteBuffer slice = zip.duplicate();
+            slice.limit((int) (position + size));
+            slice.position((int) position);
+            return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static int unsignedShort(ByteBuffer buffer, int index) {
+            return buffer.getShort(index) & 0xFFFF;
+        }
+
+        private static long unsignedInt(ByteBuffer buffer, int index) {
+            return buffer.getInt(index) & MAX_VALUE;
+        }
+
+        private static long crc(byte[] bytes) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            return crc.getValue();
+        }
+
+        /**
+         * @param time time in milliseconds
+         * @return the MS-DOS date and time, in the local time zone
+         */
+        static int dosTime(long time) {
+            Calendar calendar = new GregorianCalendar();
+            calendar.setTimeInMillis(time);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980) {
+                return DOS_EPOCH;
+            }
+            return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                    | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+        }
+
+        /**
+         * @param dosTime MS-DOS date and time, in the local time zone
+         * @return the time in milliseconds
+         */
+        static long javaTime(int dosTime) {
+            Calendar calendar = new GregorianCalendar();
+            calendar.clear();
+            calendar.set(((dosTime >> 25) & 0x7F) + 1980, ((dosTime >> 21) & 0x0F) - 1, (dosTime >> 16) & 0x1F,
+                    (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime << 1) & 0x3E);
+            return calendar.getTimeInMillis();
+        }
+
+        /**
+         * Create a writer for an output format
+         *
+         * @param output output file, or folder
+         * @param format output format
+         * @return the writer
+         */
+        static EntryWriter writer(Path output, OutputFormat format) throws IOException {
+            return format == OutputFormat.DIRECTORY ? new DirectoryWriter(output) : new Writer(output, format == OutputFormat.JAR);
+        }
+
+        /**
+         * Compress the content of an entry
+         *
+         * @param content  uncompressed content
+         * @param deflater deflater without zlib header
+         * @return the compressed content
+         */
+        static byte[] deflate(byte[] content, Deflater deflater) {
+            deflater.reset();
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] compressed = new byte[content.length / 2 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        }
+
+        /**
+         * Destination of the entries of a jar file
+         */
+        interface EntryWriter extends Closeable {
+            /**
+             * Copy an entry of a zip file, without decompressing it when possible
+             *
+             * @param source content of the zip file containing the entry
+             * @param entry  entry to copy
+             * @param name   name of the copied entry
+             */
+            void copy(ByteBuffer source, Entry entry, String name) throws IOException;
+
+            /**
+             * Write an entry
+             *
+             * @param name    name of the entry
+             * @param content uncompressed content
+             * @param dosTime MS-DOS date and time of the entry
+             */
+            default void write(String name, byte[] content, int dosTime) throws IOException {
+                write(name, content, dosTime, null);
+            }
+
+            /**
+             * Write an entry
+             *
+             * @param name       name of the entry
+             * @param content    uncompressed content
+             * @param dosTime    MS-DOS date and time of the entry
+             * @param compressed content compressed by {@link #deflate(byte[], Deflater)}, or null to compress it if needed
+             */
+            void write(String name, byte[] content, int dosTime, byte[] compressed) throws IOException;
+
+            /**
+             * Write a directory entry
+             *
+             * @param name name of the directory, ending with a '/'
+             */
+            void directory(String name) throws IOException;
+
+            /**
+             * Complete the output, once all the entries are written
+             */
+            void finish() throws IOException;
+        }
+
+        /**
+         * Zip file writer
+         * <p>
+         * The sizes and CRC of each entry are known before it is written, so no data
+         * descriptor is needed. {@link #finish()} must be called to write the central
+         * directory.
+         */
+        static class Writer implements EntryWriter {
+            private final FileChannel channel;
+            // Deflate the entries, or store them uncompressed
+            private final boolean compress;
+            // Headers are buffered, the data of the entries is written directly
+            private final ByteBuffer buffer = ByteBuffer.allocate(1 << 17).order(ByteOrder.LITTLE_ENDIAN);
+            private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            private final Inflater inflater = new Inflater(true);
+            private final List<Entry> entries = new ArrayList<>();
+            private long position;
+
+            Writer(Path output, boolean compress) throws IOException {
+                this.channel = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                this.compress = compress;
+            }
+
+            @Override
+            public void copy(ByteBuffer source, Entry entry, String name) throws IOException {
+                if (!compress && entry.method != STORED) {
+                    write(name, read(source, entry, inflater), entry.dosTime);
+                    return;
+                }
+                ByteBuffer data = slice(source, dataOffset(source, entry), entry.compressedSize);
+                writeLocalHeader(new Entry(name, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, position));
+                flush();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                position += entry.compressedSize;
+            }
+
+            @Override
+            public void write(String name, byte[] content, int dosTime, byte[] compressed) throws IOException {
+                if (!compress || content.length == 0) {
+                    writeLocalHeader(new Entry(name, STORED, dosTime, crc(content), content.length, content.length, position));
+                    flush();
+                    ByteBuffer data = ByteBuffer.wrap(content);
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    position += content.length;
+                    return;
+                }
+                if (compressed == null) {
+                    compressed = deflate(content, deflater);
+                }
+                writeLocalHeader(new Entry(name, DEFLATED, dosTime, crc(content), compressed.length, content.length, position));
+                flush();
+                ByteBuffer data = ByteBuffer.wrap(compressed);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                position += compressed.length;
+            }
+
+            @Override
+            public void directory(String name) throws IOException {
+                write(name, new byte[0], DOS_EPOCH);
+            }
+
+            /**
+             * Write the central directory
+             */
+            @Override
+            public void finish() throws IOException {
+                if (entries.size() >= MAX_ENTRIES || position >= MAX_VALUE) {
+                    throw new ZipException("Too many entries or file too large for a zip file without zip64");
+                }
+                long directoryOffset = position;
+                for (Entry entry : entries) {
+                    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                    ensureRemaining(CENTRAL_HEADER_SIZE + name.length);
+                    buffer.putInt(CENTRAL_HEADER);
+                    buffer.putShort((short) VERSION);
+                    putEntryHeader(entry, name);
+                    buffer.putShort((short) 0); // comment length
+                    buffer.putShort((short) 0); // disk number
+                    buffer.putShort((short) 0); // internal attributes
+                    buffer.putInt(0);           // external attributes
+                    buffer.putInt((int) entry.localHeaderOffset);
+                    buffer.put(name);
+                    position += CENTRAL_HEADER_SIZE + name.length;
+                }
+                if (position - directoryOffset >= MAX_VALUE) {
+                    throw new ZipException("Central directory too large for a zip file without zip64");
+                }
+                ensureRemaining(END_HEADER_SIZE);
+                buffer.putInt(END_HEADER);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) 0);
+                buffer.putShort((short) entries.size());
+                buffer.putShort((short) entries.size());
+                buffer.putInt((int) (position - directoryOffset));
+                buffer.putInt((int) directoryOffset);
+                buffer.putShort((short) 0);
+                position += END_HEADER_SIZE;
+                flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                deflater.end();
+                inflater.end();
+                channel.close();
+            }
+
+            private void writeLocalHeader(Entry entry) throws IOException {
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFFFF) {
+                    throw new ZipException("Entry name too long: " + entry.name);
+                }
+                if (position + LOCAL_HEADER_SIZE + name.length + entry.compressedSize >= MAX_VALUE) {
+                    throw new ZipException("File too large for a zip file without zip64");
+                }
+                ensureRemaining(LOCAL_HEADER_SIZE + name.length);
+                buffer.putInt(LOCAL_HEADER);
+                putEntryHeader(entry, name);
+                buffer.put(name);
+                position += LOCAL_HEADER_SIZE + name.length;
+                entries.add(entry);
+            }
+
+            /**
+             * Put the part common to the local and central headers, from the version needed to extract
+             */
+            private void putEntryHeader(Entry entry, byte[] name) {
+                buffer.putShort((short) VERSION);
+                buffer.putShort((short) FLAG_UTF8);
+                buffer.putShort((short) entry.method);
+                buffer.putInt(entry.dosTime);
+                buffer.putInt((int) entry.crc);
+                buffer.putInt((int) entry.compressedSize);
+                buffer.putInt((int) entry.size);
+                buffer.putShort((short) name.length);
+                buffer.putShort((short) 0); // extra field length
+            }
+
+            private void ensureRemaining(int size) throws IOException {
+                if (buffer.remaining() < size) {
+                    flush();
+                }
+            }
+
+            private void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Exploded jar writer: each entry is written as a file of the output folder
+         */
+        static class DirectoryWriter implements EntryWriter {
+            private final Path root;
+            private final Inflater inflater = new Inflater(true);
+
+            DirectoryWriter(Path root) throws IOException {
+                this.root = root.toAbsolutePath().normalize();
+                Files.createDirectories(this.root);
+            }
+
+            @Override
+            public void copy(ByteBuffer source, Entry entry, String name) throws IOException {
+                write(name, read(source, entry, inflater), entry.dosTime);
+            }
+
+            @Override
+            public void write(String name, byte[] content, int dosTime, byte[] compressed) throws IOException {
+                Path file = resolve(name);
+                Files.createDirectories(file.getParent());
+                Files.write(file, content);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(javaTime(dosTime)));
+            }
+
+            @Override
+            public void directory(String name) throws IOException {
+                Files.createDirectories(resolve(name));
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+                inflater.end();
+            }
+
+            private Path resolve(String name) throws IOException {
+                Path file = root.resolve(name).normalize();
+                if (!file.startsWith(root) || file.equals(root)) {
+                    throw new ZipException("Invalid entry name: " + name);
+                }
+                return file;
+            }
+        }
+    }
+
+
+    /**
+     * Read-only memory mapping of a file
+     * <p>
+     * Jar files are hashed, scanned and relocated through their mapping, without
+     * being copied into heap buffers. The mapping is released when closed, so that
+     * the file can be replaced or deleted right away, even on Windows.
+     */
+    static class MappedFile implements Closeable {
+
+        // Cleaner of the mapped buffers: Unsafe.invokeCleaner (Java 9+), or null to use DirectBuffer.cleaner (Java 8)
+        private static final Object UNSAFE;
+        private static final Method METHOD_INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method methodInvokeCleaner = null;
+            try {
+                Class<?> classUnsafe = Class.forName("sun.misc.Unsafe");
+                methodInvokeCleaner = classUnsafe.getMethod("invokeCleaner", ByteBuffer.class);
+                Field fieldUnsafe = classUnsafe.getDeclaredField("theUnsafe");
+                fieldUnsafe.setAccessible(true);
+                unsafe = fieldUnsafe.get(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                methodInvokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            METHOD_INVOKE_CLEANER = methodInvokeCleaner;
+        }
+
+        private ByteBuffer buffer;
+
+        private MappedFile(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Map a file
+         *
+         * @param path file to map
+         * @return the mapped file, or null if the file is too large to be mapped at once
+         * @throws IOException if the file cannot be mapped
+         */
+        static MappedFile open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    return null;
+                }
+                return new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        }
+
+        /**
+         * @return the content of the file; it must not be used once the file is closed
+         */
+        ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+
+        /**
+         * Release the mapping, if the JVM allows it. Otherwise, it is released when
+         * the buffer is garbage collected.
+         */
+        @Override
+        public void close() {
+            ByteBuffer mapped = buffer;
+            buffer = null;
+            if (mapped == null || !mapped.isDirect()) {
+                return;
+            }
+            try {
+                if (METHOD_INVOKE_CLEANER != null) {
+                    METHOD_INVOKE_CLEANER.invoke(UNSAFE, mapped);
+                } else {
+                    Method methodCleaner = mapped.getClass().getMethod("cleaner");
+                    methodCleaner.setAccessible(true);
+                    Object cleaner = methodCleaner.invoke(mapped);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // The mapping is released by the garbage collector
+            }
+        }
+    }
+
+
+    /**
+     * Helper class to add jar file to the class loader
+     */
+    static class UrlClassLoader {
+        private UrlClassLoader() {
+        }
+
+        private static final Method METHOD_ADD_URL;
+        // Why URLClassLoader.addURL cannot be used, null if it can
+        private static final Exception ADD_URL_FAILURE;
+
+        static {
+            Method methodAddUrl;
+            Exception failure = null;
+            try {
+                methodAddUrl = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
+                methodAddUrl.setAccessible(true);
+            } catch (NoSuchMethodException | RuntimeException e) {
+                // java.base does not open java.net (Java 16+ without --add-opens)
+                methodAddUrl = null;
+                failure = e;
+            }
+            METHOD_ADD_URL = methodAddUrl;
+            ADD_URL_FAILURE = failure;
+        }
+
+        /**
+         * @param classLoader class loader
+         * @return true if jar files can be added to the class loader
+         */
+        static boolean canAddTo(ClassLoader classLoader) {
+            return METHOD_ADD_URL != null && classLoader instanceof URLClassLoader;
+        }
+
+        /**
+         * @param classLoader class loader
+         * @return why jar files cannot be added to the class loader
+         */
+        static String whyNotAddTo(ClassLoader classLoader) {
+            if (!(classLoader instanceof URLClassLoader)) {
+                return classLoader.getClass().getName() + " is not a URLClassLoader";
+            }
+            return "URLClassLoader.addURL is not accessible (" + ADD_URL_FAILURE + "), open java.net to DMRelocator with --add-opens java.base/java.net=ALL-UNNAMED";
+        }
+
+        public static void addToClassLoader(ClassLoader classLoader, File input) {
+            requireNonNull(classLoader, "classLoader cannot be null.");
+            requireNonNull(input, "input cannot be null.");
+
+            if (canAddTo(classLoader)) {
+                try {
+                    // Exploded jars are added as folders
+                    URL url = input.isDirectory() ? input.toURI().toURL() : new URL("jar:file:" + input.getPath() + "!/");
+                    METHOD_ADD_URL.invoke(classLoader, url);
+                } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException | MalformedURLException e) {
+                    throw new RelocatorException("Error while adding jar file : " + input.getName() + " to the class loader", e);
+                }
+            } else {
+                throw new RelocatorException("Unknown classloader: " + classLoader.getClass());
+            }
+        }
+    }
+
+
+    /**
+     * Class loader of the artifacts, owned by DMRelocator
+     * <p>
+     * The packages of each artifact are indexed when it is added, so a class is read
+     * from the artifacts defining its package, without searching the others. Classes
+     * of the relocated packages are loaded by this class loader first, the others by its
+     * parent first, so a class the parent already has is not defined twice. Classes
+     * missing from the artifacts defining their package are remembered, until another
+     * artifact is added.
+     * <p>
+     * Artifacts added with relocation rules are relocated class by class: the relocated
+     * entry names are mapped back to the entries of the artifact, and each class is
+     * rewritten when it is loaded.
+     */
+    static class LibraryClassLoader extends ClassLoader implements Closeable {
+
+        static {
+            ClassLoader.registerAsParallelCapable();
+        }
+
+        // Artifacts defining each package (internal name, "" for the root package), in the order they were added
+        private final Map<String, List<Library>> packages = new ConcurrentHashMap<>();
+        // Artifacts added to the class loader
+        private final Map<File, Library> libraries = new LinkedHashMap<>();
+        // Classes of indexed packages which are not in the artifacts
+        private final Set<String> missingClasses = ConcurrentHashMap.newKeySet();
+        // Relocated packages, loaded by this class loader first (binary names followed by '.')
+        private final Set<String> localPackages = ConcurrentHashMap.newKeySet();
+
+        LibraryClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        /**
+         * Load the classes of a package, and of its sub packages, from the artifacts first
+         *
+         * @param packageName package the artifacts are relocated to
+         */
+        void addLocalPackage(String packageName) {
+            localPackages.add(requireNonNull(packageName, "packageName cannot be null.").replace('/', '.') + ".");
+        }
+
+        /**
+         * Add an artifact to the class loader
+         *
+         * @param input jar file or folder
+         */
+        void addLibrary(File input) {
+            addLibrary(input, null);
+        }
+
+        /**
+         * Add an artifact to the class loader
+         *
+         * @param input jar file or folder
+         * @param rules rules to relocate the classes with when they are loaded, or null
+         */
+        synchronized void addLibrary(File input, RelocationRules rules) {
+            requireNonNull(input, "input cannot be null.");
+            File file = input.getAbsoluteFile();
+            if (libraries.containsKey(file)) {
+                return;
+            }
+            Library library;
+            Set<String> names = new HashSet<>();
+            try {
+                library = file.isDirectory() ? new Library(file, null, rules) : new Library(file, new JarFile(file, false), rules);
+                library.entryNames(names);
+            } catch (IOException e) {
+                throw new RelocatorException("Error while adding jar file : " + input.getName() + " to the class loader", e);
+            }
+            libraries.put(file, library);
+
+            Set<String> packageNames = new HashSet<>();
+            for (String name : names) {
+                packageNames.add(directoryName(name));
+            }
+            for (String packageName : packageNames) {
+                packages.computeIfAbsent(packageName, key -> new CopyOnWriteArrayList<>()).add(library);
+            }
+            missingClasses.clear();
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loadedClass = findLoadedClass(name);
+                if (loadedClass == null) {
+                    if (!isLocal(name)) {
+                        // The parent first, then findClass
+                        return super.loadClass(name, resolve);
+                    }
+                    loadedClass = findLibraryClass(name);
+                    if (loadedClass == null) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(loadedClass);
+                }
+                return loadedClass;
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> foundClass = isLocal(name) ? null : findLibraryClass(name);
+            if (foundClass == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return foundClass;
+        }
+
+        /**
+         * @return true if the class belongs to a relocated package
+         */
+        private boolean isLocal(String name) {
+            for (String packageName : localPackages) {
+                if (name.startsWith(packageName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the class, defined from the artifacts defining its package, or null if they do not have it
+         */
+        private Class<?> findLibraryClass(String name) throws ClassNotFoundException {
+            List<Library> definingLibraries = name.startsWith("java.") ? null : packages.get(directoryName(name.replace('.', '/')));
+            if (definingLibraries == null || missingClasses.contains(name)) {
+                return null;
+            }
+            Class<?> definedClass = defineClass(name, definingLibraries);
+            if (definedClass == null) {
+                missingClasses.add(name);
+            }
+            return definedClass;
+        }
+
+        private Class<?> defineClass(String name, List<Library> definingLibraries) throws ClassNotFoundException {
+            String entryName = name.replace('.', '/') + ".class";
+            for (Library library : definingLibraries) {
+                byte[] bytes;
+                try {
+                    bytes = library.readClass(entryName);
+                } catch (IOException | RuntimeException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+                if (bytes == null) {
+                    continue;
+                }
+                int index = name.lastIndexOf('.');
+                if (index != -1) {
+                    definePackage(name.substring(0, index), library);
+                }
+                return defineClass(name, bytes, 0, bytes.length, library.protectionDomain);
+            }
+            return null;
+        }
+
+        // getDefinedPackage only exists since Java 9, getPackage is deprecated since then
+        @SuppressWarnings("deprecation")
+        private void definePackage(String name, Library library) {
+            if (getPackage(name) != null) {
+                return;
+            }
+            try {
+                Attributes attributes = library.manifest != null ? library.manifest.getMainAttributes() : new Attributes();
+                definePackage(name,
+                        attributes.getValue(Attributes.Name.SPECIFICATION_TITLE),
+                        attributes.getValue(Attributes.Name.SPECIFICATION_VERSION),
+                        attributes.getValue(Attributes.Name.SPECIFICATION_VENDOR),
+                        attributes.getValue(Attributes.Name.IMPLEMENTATION_TITLE),
+                        attributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION),
+                        attributes.getValue(Attributes.Name.IMPLEMENTATION_VENDOR),
+                        null);
+            } catch (IllegalArgumentException ignored) {
+                // Defined by another thread
+            }
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            List<Library> definingLibraries = packages.get(directoryName(name));
+            if (definingLibraries != null) {
+                for (Library library : definingLibraries) {
+                    URL url = library.resource(name);
+                    if (url != null) {
+                        return url;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) {
+            List<URL> urls = new ArrayList<>();
+            List<Library> definingLibraries = packages.get(directoryName(name));
+            if (definingLibraries != null) {
+                for (Library library : definingLibraries) {
+                    URL url = library.resource(name);
+                    if (url != null) {
+                        urls.add(url);
+                    }
+                }
+            }
+            return Collections.enumeration(urls);
+        }
+
+        /**
+         * Close the jar files of the artifacts
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            IOException exception = null;
+            for (Library library : libraries.values()) {
+                try {
+                    library.close();
+                } catch (IOException e) {
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        /**
+         * @return the folder of a file, "" for the root folder
+         */
+        private static String directoryName(String name) {
+            int index = name.lastIndexOf('/');
+            return index == -1 ? "" : name.substring(0, index);
+        }
+
+        /**
+         * Artifact added to the class loader: a jar file or a folder
+         */
+        private static class Library implements Closeable {
+            final File file;
+            // Null for a folder
+            final JarFile jarFile;
+            final Manifest manifest;
+            final ProtectionDomain protectionDomain;
+            private final String baseUrl;
+            // Rules relocating the classes when they are loaded, null if the artifact is relocated
+            private final RelocationRules rules;
+            private final ClassRewriter rewriter;
+            // Names of the entries, by relocated name, null if the artifact is relocated
+            private Map<String, String> originalNames;
+
+            Library(File file, JarFile jarFile, RelocationRules rules) throws IOException {
+                this.file = file;
+                this.jarFile = jarFile;
+                this.rules = rules;
+                this.rewriter = rules != null ? new ClassRewriter(rules) : null;
+                if (jarFile != null) {
+                    this.manifest = jarFile.getManifest();
+                    this.baseUrl = "jar:" + file.toURI() + "!/";
+                } else {
+                    File manifestFile = new File(file, JarFile.MANIFEST_NAME);
+                    if (manifestFile.isFile()) {
+                        try (InputStream in = new FileInputStream(manifestFile)) {
+                            this.manifest = new Manifest(in);
+                        }
+                    } else {
+                        this.manifest = null;
+                    }
+                    this.baseUrl = file.toURI().toString();
+                }
+                CodeSource codeSource = new CodeSource(file.toURI().toURL(), (CodeSigner[]) null);
+                this.protectionDomain = new ProtectionDomain(codeSource, null);
+            }
+
+            /**
+             * Collect the names of the files of the artifact, once relocated
+             */
+            void entryNames(Set<String> names) throws IOException {
+                if (jarFile != null && rules != null) {
+                    // Same names as a relocated jar file
+                    originalNames = new HashMap<>();
+                    for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (name.equals("META-INF/INDEX.LIST") || entry.isDirectory() || Relocator.isSignatureFile(name)) {
+                            continue;
+                        }
+                        String mappedName = name.endsWith(".class")
+                                ? rules.mapInternalName(name.substring(0, name.indexOf('.'))) + ".class"
+                                : rules.mapInternalName(name);
+                        originalNames.putIfAbsent(mappedName, name);
+                    }
+                    names.addAll(originalNames.keySet());
+                    return;
+                }
+                if (jarFile != null) {
+                    for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                        JarEntry entry = entries.nextElement();
+                        if (!entry.isDirectory()) {
+                            names.add(entry.getName());
+                        }
+                    }
+                    return;
+                }
+                Path root = file.toPath();
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                        names.add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+
+            /**
+             * @return the relocated content of a class of the artifact, or null if there is no such class
+             */
+            byte[] readClass(String name) throws IOException {
+                byte[] bytes = read(name);
+                if (bytes == null || rewriter == null || !rules.isReferencedBy(bytes)) {
+                    return bytes;
+                }
+                return rewriter.rewrite(bytes);
+            }
+
+            /**
+             * @return the content of a file of the artifact, or null if there is no such file
+             */
+            byte[] read(String name) throws IOException {
+                if (originalNames != null) {
+                    name = originalNames.get(name);
+                    if (name == null) {
+                        return null;
+                    }
+                }
+                if (jarFile != null) {
+                    JarEntry entry = jarFile.getJarEntry(name);
+                    if (entry == null) {
+                        return null;
+                    }
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        return readFully(in, (int) entry.getSize());
+                    }
+                }
+                Path path = file.toPath().resolve(name);
+                return Files.isRegularFile(path) ? Files.readAllBytes(path) : null;
+            }
+
+            /**
+             * @return the url of a file of the artifact, or null if there is no such file
+             */
+            URL resource(String name) {
+                String originalName = name;
+                if (originalNames != null) {
+                    originalName = originalNames.get(name);
+                    if (originalName == null) {
+                        return null;
+                    }
+                }
+                boolean exists = jarFile != null ? jarFile.getEntry(originalName) != null : Files.isRegularFile(file.toPath().resolve(originalName));
+                if (!exists) {
+                    return null;
+                }
+                try {
+                    if (rules != null && name.endsWith(".class")) {
+                        // The file only holds the original class, serve the relocated one
+                        return new URL(null, baseUrl + name, new ClassHandler(name));
+                    }
+                    return new URL(baseUrl + originalName);
+                } catch (MalformedURLException e) {
+                    return null;
+                }
+            }
+
+            /**
+             * Open the relocated content of a class of the artifact
+             */
+            private class ClassHandler extends URLStreamHandler {
+                private final String name;
+
+                ClassHandler(String name) {
+                    this.name = name;
+                }
+
+                @Override
+                protected URLConnection openConnection(URL url) {
+                    return new URLConnection(url) {
+                        private byte[] bytes;
+
+                        @Override
+                        public void connect() throws IOException {
+                            if (bytes == null) {
+                                bytes = readClass(name);
+                                if (bytes == null) {
+                                    throw new FileNotFoundException(url.toString());
+                                }
+                                connected = true;
+                            }
+                        }
+
+                        @Override
+                        public InputStream getInputStream() throws IOException {
+                            connect();
+                            return new ByteArrayInputStream(bytes);
+                        }
+
+                        @Override
+                        public long getContentLengthLong() {
+                            try {
+                                connect();
+                            } catch (IOException e) {
+                                return -1;
+                            }
+                            return bytes.length;
+                        }
+                    };
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (jarFile != null) {
+                    jarFile.close();
+                }
+            }
+
+            private static byte[] readFully(InputStream in, int size) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : 8192);
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+
+    /**
+     * Helper class to create the thread pools used by DMRelocator
+     */
+    static class Workers {
+        private Workers() {
+        }
+
+        // Thread.ofVirtual() (JDK 21+)
+        private static final Method METHOD_OF_VIRTUAL;
+        // Thread.Builder.name(String, long)
+        private static final Method METHOD_BUILDER_NAME;
+        // Thread.Builder.factory()
+        private static final Method METHOD_BUILDER_FACTORY;
+
+        static {
+            Method ofVirtual = null;
+            Method builderName = null;
+            Method builderFactory = null;
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                builderName = builderClass.getMethod("name", String.class, long.class);
+                builderFactory = builderClass.getMethod("factory");
+            } catch (ClassNotFoundException | NoSuchMethodException ignored) {
+                // Virtual threads are not supported by this JVM
+            }
+            METHOD_OF_VIRTUAL = ofVirtual;
+            METHOD_BUILDER_NAME = builderName;
+            METHOD_BUILDER_FACTORY = builderFactory;
+        }
+
+        /**
+         * @return true if the JVM supports virtual threads
+         */
+        static boolean supportsVirtualThreads() {
+            return METHOD_OF_VIRTUAL != null;
+        }
+
+        /**
+         * Create a fixed size thread pool
+         *
+         * @param name    name of the pool, used to name its threads
+         * @param threads number of threads
+         * @param virtual use virtual threads if the JVM supports them
+         * @return the thread pool
+         */
+        static ExecutorService newPool(String name, int threads, boolean virtual) {
+            return Executors.newFixedThreadPool(threads, threadFactory(name, virtual));
+        }
+
+        /**
+         * Wait for tasks run for artifacts, and collect their failures
+         *
+         * @param futures tasks per artifact
+         * @param action  name of the task, used in the error message
+         * @return the results of the tasks, in the order of the map
+         * @throws RelocatorException if at least one task failed, the other failures are suppressed exceptions
+         */
+        static <T> List<T> getAll(Map<Artifact, Future<T>> futures, String action) {
+            List<T> results = new ArrayList<>();
+            getAll(futures, action, results::add);
+            return results;
+        }
+
+        /**
+         * Wait for tasks run for artifacts, and collect their failures
+         *
+         * @param futures  tasks per artifact
+         * @param action   name of the task, used in the error message
+         * @param onResult called with the result of each task, in the order of the map, until a task fails
+         * @throws RelocatorException if at least one task failed, the other failures are suppressed exceptions
+         */
+        static <T> void getAll(Map<Artifact, Future<T>> futures, String action, Consumer<T> onResult) {
+            Map<Artifact, Throwable> failures = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<Artifact, Future<T>> entry : futures.entrySet()) {
+                    try {
+                        T result = entry.getValue().get();
+                        if (failures.isEmpty()) {
+                            onResult.accept(result);
+                        }
+                    } catch (ExecutionException e) {
+                        failures.put(entry.getKey(), e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RelocatorException("Interrupted while waiting to " + action + " artifacts", e);
+            }
+
+            if (!failures.isEmpty()) {
+                StringJoiner names = new StringJoiner(", ");
+                failures.keySet().forEach(artifact -> names.add(artifact.toString()));
+                RelocatorException exception = new RelocatorException("Could not " + action + " " + failures.size() + " artifact(s): " + names, failures.values().iterator().next());
+                failures.values().stream().skip(1).forEach(exception::addSuppressed);
+                throw exception;
+            }
+        }
+
+        /**
+         * Create a fixed size thread pool with a bounded queue
+         * <p>
+         * When the queue is full, the tasks are run by the thread submitting them.
+         *
+         * @param name    name of the pool, used to name its threads
+         * @param threads number of threads
+         * @param queue   number of tasks waiting for a thread
+         * @return the thread pool
+         */
+        static ExecutorService newBoundedPool(String name, int threads, int queue) {
+            return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), threadFactory(name, false), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        /**
+         * Create a fork-join pool
+         *
+         * @param name    name of the pool, used to name its threads
+         * @param threads parallelism of the pool
+         * @return the fork-join pool
+         */
+        static ForkJoinPool newForkJoinPool(String name, int threads) {
+            String prefix = "DMRelocator-" + name + "-";
+            AtomicInteger count = new AtomicInteger();
+            return new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(prefix + count.incrementAndGet());
+                return thread;
+            }, null, false);
+        }
+
+        static ThreadFactory threadFactory(String name, boolean virtual) {
+            String prefix = "DMRelocator-" + name + "-";
+            if (virtual && supportsVirtualThreads()) {
+                try {
+                    Object builder = METHOD_BUILDER_NAME.invoke(METHOD_OF_VIRTUAL.invoke(null), prefix, 1L);
+                    return (ThreadFactory) METHOD_BUILDER_FACTORY.invoke(builder);
+                } catch (IllegalAccessException | InvocationTargetException ignored) {
+                    // Fallback to platform threads
+                }
+            }
+            AtomicInteger count = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+
+    /**
+     * Key/value store persisted in a properties file
+     * <p>
+     * The store is safe to use from several threads. It is written to a temporary
+     * file which replaces the previous one, so a crash never leaves a truncated store.
+     */
+    static class Store {
+
+        private final Path file;
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+        private volatile boolean modified = false;
+
+        /**
+         * Load a store
+         *
+         * @param file properties file, it does not need to exist
+         */
+        Store(Path file) {
+            this.file = file;
+            if (Files.isRegularFile(file)) {
+                Properties properties = new Properties();
+                try (InputStream inputStream = Files.newInputStream(file)) {
+                    properties.load(inputStream);
+                    properties.stringPropertyNames().forEach(key -> values.put(key, properties.getProperty(key)));
+                } catch (IOException | IllegalArgumentException ignored) {
+                    // A corrupted store is ignored, it will be rebuilt
+                    values.clear();
+                }
+            }
+        }
+
+        String get(String key) {
+            return values.get(key);
+        }
+
+        void put(String key, String value) {
+            if (!value.equals(values.put(key, value))) {
+                modified = true;
+            }
+        }
+
+        void remove(String key) {
+            if (values.remove(key) != null) {
+                modified = true;
+            }
+        }
+
+        void removeIf(Predicate<String> key) {
+            if (values.keySet().removeIf(key)) {
+                modified = true;
+            }
+        }
+
+        Set<String> keys() {
+            return values.keySet();
+        }
+
+        /**
+         * Write the store if it has been modified
+         *
+         * @throws IOException if the store cannot be written
+         */
+        synchronized void save() throws IOException {
+            if (!modified) {
+                return;
+            }
+            Downloader.makeDir(file.toAbsolutePath().getParent());
+            Properties properties = new Properties();
+            properties.putAll(values);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tmp)) {
+                properties.store(outputStream, "DMRelocator " + VERSION);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            modified = false;
+        }
     }
 
 
     /**
-     * Helper class doing all the relocation process
+     * JVM options creating and using a class data sharing archive of the relocated artifacts
      * <p>
-     * It use jar-relocator (https://github.com/lucko/jar-relocator)
+     * The archive is a dynamic archive (JDK 13+): the JVM records the classes it loads,
+     * including those loaded from the relocated artifacts by any class loader, and dumps
+     * them at exit. It is named after the JVM and the relocated artifacts, so that the
+     * options point to a new archive, created on the next start, when one of them changes.
+     * Since JDK 19, the JVM creates the archive by itself when it is missing or stale.
      */
-    static class Relocator {
+    static class ClassDataSharing {
+        private ClassDataSharing() {
+        }
 
-        private final DMRelocator dmRelocator;
+        // Name of the JVM options file in the lib folder
+        static final String OPTIONS_FILE_NAME = "dmrelocator-cds.options";
+        // Name of the folder of the archives in the lib folder
+        static final String ARCHIVE_FOLDER_NAME = ".dmrelocator-cds";
 
-        public Relocator(DMRelocator dmRelocator) {
-            this.dmRelocator = dmRelocator;
+        /**
+         * @return the feature version of the JVM
+         */
+        static int javaVersion() {
+            String version = System.getProperty("java.specification.version", "1.8");
+            try {
+                return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+            } catch (NumberFormatException e) {
+                return 8;
+            }
+        }
+
+        /**
+         * @return true if the JVM supports dynamic archives
+         */
+        static boolean isSupported() {
+            return javaVersion() >= 13;
         }
 
-        private static final Class<?> CLASS_JAR_RELOCATOR;
-        private static final Class<?> CLASS_RELOCATION;
+        /**
+         * Update the JVM options file, and delete the archives of previous artifacts
+         *
+         * @param libDir lib folder
+         * @param files  relocated artifacts
+         * @return true if the options have changed
+         * @throws IOException if the options file cannot be written
+         */
+        static boolean update(Path libDir, List<File> files) throws IOException {
+            Path folder = libDir.toAbsolutePath().resolve(ARCHIVE_FOLDER_NAME);
+            Path archive = folder.resolve(key(files) + ".jsa");
+            Files.createDirectories(folder);
+
+            // Previous archives, unless in use (Windows)
+            try (DirectoryStream<Path> archives = Files.newDirectoryStream(folder, "*.jsa")) {
+                for (Path previous : archives) {
+                    if (!previous.equals(archive)) {
+                        try {
+                            Files.deleteIfExists(previous);
+                        } catch (IOException ignored) {
+                            // Deleted next time
+                        }
+                    }
+                }
+            }
+
+            String options;
+            if (javaVersion() >= 19) {
+                options = "-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=" + quote(archive);
+            } else if (Files.isRegularFile(archive)) {
+                options = "-XX:SharedArchiveFile=" + quote(archive);
+            } else {
+                options = "-XX:ArchiveClassesAtExit=" + quote(archive);
+            }
+            options += System.lineSeparator();
 
-        static {
-            Class<?> classJarRelocator;
-            Class<?> classRelocation;
+            Path optionsFile = libDir.toAbsolutePath().resolve(OPTIONS_FILE_NAME);
+            if (Files.isRegularFile(optionsFile) && new String(Files.readAllBytes(optionsFile), StandardCharsets.UTF_8).equals(options)) {
+                return false;
+            }
+            Path tmp = optionsFile.resolveSibling(OPTIONS_FILE_NAME + ".tmp");
+            Files.write(tmp, options.getBytes(StandardCharsets.UTF_8));
             try {
-                classJarRelocator = Class.forName("me.lucko.jarrelocator.JarRelocator");
-            } catch (ClassNotFoundException e) {
-                throw new RelocatorException("Could not found class me.lucko.jarrelocator.JarRelocator", e);
+                Files.move(tmp, optionsFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, optionsFile, StandardCopyOption.REPLACE_EXISTING);
             }
+            return true;
+        }
+
+        /**
+         * @return the key of the archive of the relocated artifacts, for this JVM
+         */
+        static String key(List<File> files) {
             try {
-                classRelocation = Class.forName("me.lucko.jarrelocator.Relocation");
-            } catch (ClassNotFoundException e) {
-                throw new RelocatorException("Could not found class me.lucko.jarrelocator.Relocation", e);
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update((System.getProperty("java.vm.version") + "|" + System.getProperty("java.home") + "\n").getBytes(StandardCharsets.UTF_8));
+                for (File file : files) {
+                    digest.update((file.getAbsolutePath() + "|" + HashManifest.stamp(file) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                return FileSha1.bytesToHexString(digest.digest()).substring(0, 16).toLowerCase(Locale.ROOT);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RelocatorException("Unable to compute the class data sharing archive key", e);
             }
-            CLASS_JAR_RELOCATOR = classJarRelocator;
-            CLASS_RELOCATION = classRelocation;
         }
 
-        void relocate(ClassLoader classLoader, Artifact artifact, Collection<Relocation> relocations, Path from, Path to) {
-            // All parameters must not be null
-            requireNonNull(classLoader);
-            requireNonNull(artifact);
-            requireNonNull(relocations);
-            requireNonNull(from);
-            requireNonNull(to);
+        /**
+         * @return a path quoted for a JVM options file
+         */
+        private static String quote(Path path) {
+            String value = path.toString();
+            return value.indexOf(' ') == -1 && value.indexOf('\\') == -1 ? value : "\"" + value.replace("\\", "\\\\") + "\"";
+        }
+    }
 
-            // Jar-relocator constructor parameters
-            final File input = from.resolve(artifact.toPath(from)).toFile();
-            final File output = to.resolve(artifact.toPath(to)).toFile();
-            List<Object> rules = new LinkedList<>();
 
-            if (!output.exists()) {
-                // Jar-relocator Relocation instances
-                try {
-                    for (Relocation relocation : relocations) {
-                        Constructor<?> constructor = CLASS_RELOCATION.getConstructor(String.class, String.class);
-                        Object instance = constructor.newInstance(relocation.pattern, relocation.relocatedPattern);
-                        rules.add(instance);
-                    }
-                } catch (InstantiationException | InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
-                    throw new RelocatorException("Cannot instantiate Relocation class", e);
-                }
+    /**
+     * Verified hash values of the files of a cache folder
+     * <p>
+     * For each file, the manifest records its size, last modified time and file key (inode)
+     * along with its sha1 hash value. The hash value is only computed again when one of
+     * them has changed.
+     */
+    static class HashManifest {
 
-                // Make sure output directory exist
-                try {
-                    Downloader.makeDir(output.getParentFile().toPath());
-                } catch (IOException e) {
-                    throw new RelocatorException("Cannot create output folder", e);
-                }
+        // Name of the manifest file in the cache folder
+        static final String FILE_NAME = ".dmrelocator-hashes";
 
-                // Run jar locator
-                try {
-                    dmRelocator.logger.accept("Relocating file: " + input.toPath() + " to: " + output.toPath());
+        private final Path root;
+        private final Store store;
 
-                    Constructor<?> constructor = CLASS_JAR_RELOCATOR.getConstructor(File.class, File.class, Collection.class);
-                    Object instance = constructor.newInstance(input, output, rules);
-                    Method run = CLASS_JAR_RELOCATOR.getMethod("run");
-                    run.invoke(instance);
+        /**
+         * @param root cache folder
+         */
+        HashManifest(Path root) {
+            this.root = root;
+            this.store = new Store(root.resolve(FILE_NAME));
+        }
 
-                } catch (NoSuchMethodException | IllegalAccessException | InstantiationException | InvocationTargetException e) {
-                    throw new RelocatorException("Cannot instantiate JarRelocator class", e);
-                }
+        /**
+         * Get the sha1 hash value of a file
+         *
+         * @param file file of the cache folder
+         * @return the sha1 hash value
+         */
+        String sha1(File file) {
+            String key = key(file);
+            String stamp = stamp(file);
+            String value = store.get(key);
+            if (stamp != null && value != null && value.startsWith(stamp + "|")) {
+                return value.substring(stamp.length() + 1);
+            }
+
+            String sha1 = FileSha1.sha1Code(file);
+            put(file, sha1);
+            return sha1;
+        }
 
+        /**
+         * Record the verified sha1 hash value of a file
+         *
+         * @param file file of the cache folder
+         * @param sha1 sha1 hash value
+         */
+        void put(File file, String sha1) {
+            String stamp = stamp(file);
+            if (stamp != null) {
+                store.put(key(file), stamp + "|" + sha1);
             }
+        }
+
+        void save() throws IOException {
+            // Forget the files which do not exist anymore
+            store.removeIf(key -> !Files.exists(root.resolve(key)));
+            store.save();
+        }
+
+        private String key(File file) {
+            return root.relativize(file.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        }
 
-            // Add to class loader
-            UrlClassLoader.addToClassLoader(classLoader, output);
+        /**
+         * @return size, last modified time and file key of a file, or null if it cannot be read
+         */
+        static String stamp(File file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                Object fileKey = attributes.fileKey();
+                return attributes.size() + "|" + attributes.lastModifiedTime().toMillis() + "|" + (fileKey != null ? fileKey : "-");
+            } catch (IOException e) {
+                return null;
+            }
         }
     }
 
 
     /**
-     * Helper class to add jar file to the class loader
+     * Fingerprints of the relocated files of a lib folder
+     * <p>
+     * A relocated file is reused as long as it has not been modified and has been
+     * relocated from the same input file, with the same relocations and engine.
      */
-    static class UrlClassLoader {
-        private UrlClassLoader() {
+    static class RelocationManifest {
+
+        // Name of the manifest file in the lib folder
+        static final String FILE_NAME = ".dmrelocator-relocations";
+
+        private final Path root;
+        private final Store store;
+
+        /**
+         * @param root lib folder
+         */
+        RelocationManifest(Path root) {
+            this.root = root;
+            this.store = new Store(root.resolve(FILE_NAME));
         }
 
-        private static final Method METHOD_ADD_URL;
+        /**
+         * @param output      relocated file
+         * @param fingerprint fingerprint of the relocation
+         * @return true if the relocated file exists, is unchanged and has been relocated with this fingerprint
+         */
+        boolean isUpToDate(File output, String fingerprint) {
+            String stamp = HashManifest.stamp(output);
+            return stamp != null && (fingerprint + "|" + stamp).equals(store.get(key(output)));
+        }
 
-        static {
-            Method methodAddUrl;
+        /**
+         * Record the fingerprint of a relocated file
+         *
+         * @param output      relocated file
+         * @param fingerprint fingerprint of the relocation
+         */
+        void put(File output, String fingerprint) {
+            String stamp = HashManifest.stamp(output);
+            if (stamp != null) {
+                store.put(key(output), fingerprint + "|" + stamp);
+            }
+        }
+
+        void save() throws IOException {
+            // Forget the files which do not exist anymore
+            store.removeIf(key -> !Files.exists(root.resolve(key)));
+            store.save();
+        }
+
+        private String key(File file) {
+            return root.relativize(file.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        }
+    }
+
+
+    /**
+     * Resolved artifacts of a lib folder
+     * <p>
+     * The manifest records the configuration it has been written for and, for each
+     * artifact, its resolved name, sha1 hash value, repository and relocated file, along
+     * with the size, last modified time and file key of the relocated file.
+     */
+    static class LockManifest {
+
+        // Name of the manifest file in the lib folder
+        static final String FILE_NAME = ".dmrelocator-lock";
+        // Keys
+        private static final String CONFIGURATION = "configuration";
+        private static final String ARTIFACTS = "artifacts";
+        private static final String ARTIFACT = "artifact:";
+
+        private final Path root;
+        private final Store store;
+
+        /**
+         * @param root lib folder
+         */
+        LockManifest(Path root) {
+            this.root = root;
+            this.store = new Store(root.resolve(FILE_NAME));
+        }
+
+        /**
+         * Get the relocated files of the artifacts, and restore the resolved names of the artifacts
+         *
+         * @param configuration configuration of DMRelocator
+         * @param artifacts     artifacts
+         * @return the relocated files of the artifacts and their dependencies, in the order
+         * they were resolved, or null if the manifest does not match the configuration or a
+         * relocated file has changed
+         */
+        List<File> files(String configuration, List<Artifact> artifacts) {
+            String resolved = store.get(ARTIFACTS);
+            if (!sha1(configuration).equals(store.get(CONFIGURATION)) || resolved == null) {
+                return null;
+            }
+            List<File> files = new ArrayList<>();
+            Map<String, String> names = new HashMap<>();
+            for (String artifact : resolved.isEmpty() ? new String[0] : resolved.split(",")) {
+                String value = store.get(ARTIFACT + artifact);
+                if (value == null) {
+                    return null;
+                }
+                // name|sha1|repository|file|stamp
+                String[] values = value.split("\\|", 5);
+                if (values.length < 5) {
+                    return null;
+                }
+                File file = root.resolve(values[3]).normalize().toFile();
+                if (!values[4].equals(HashManifest.stamp(file))) {
+                    return null;
+                }
+                names.put(artifact, values[0]);
+                files.add(file);
+            }
+            for (Artifact artifact : artifacts) {
+                String name = names.get(artifact.toString());
+                if (name == null) {
+                    return null;
+                }
+                artifact.name(name);
+            }
+            return files;
+        }
+
+        /**
+         * Record a resolved artifact
+         *
+         * @param artifact   resolved artifact
+         * @param sha1       sha1 hash value of the artifact file
+         * @param repository url of the repository, or of the artifact file
+         * @param file       relocated file
+         */
+        void put(Artifact artifact, String sha1, String repository, File file) {
+            String stamp = HashManifest.stamp(file);
+            if (stamp == null) {
+                throw new RelocatorException("Cannot read relocated file: " + file);
+            }
+            String path = root.relativize(file.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+            store.put(ARTIFACT + artifact, artifact.name() + "|" + sha1 + "|" + repository + "|" + path + "|" + stamp);
+        }
+
+        /**
+         * Save the manifest, once all the artifacts of the configuration are recorded
+         *
+         * @param configuration configuration of DMRelocator
+         * @param artifacts     artifacts of the configuration and their dependencies, in order
+         */
+        void save(String configuration, List<Artifact> artifacts) throws IOException {
+            // Forget the artifacts which are not used anymore
+            Set<String> keys = new HashSet<>();
+            artifacts.forEach(artifact -> keys.add(ARTIFACT + artifact));
+            store.removeIf(key -> key.startsWith(ARTIFACT) && !keys.contains(key));
+            store.put(ARTIFACTS, artifacts.stream().map(Artifact::toString).collect(Collectors.joining(",")));
+            store.put(CONFIGURATION, sha1(configuration));
+            store.save();
+        }
+
+        private static String sha1(String value) {
             try {
-                methodAddUrl = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
-                methodAddUrl.setAccessible(true);
-            } catch (NoSuchMethodException e) {
-                throw new RelocatorException("Could not found method addURL from URLClassLoader", e);
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                return FileSha1.bytesToHexString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RelocatorException("Unable to compute configuration fingerprint", e);
             }
-            METHOD_ADD_URL = methodAddUrl;
         }
+    }
 
-        public static void addToClassLoader(ClassLoader classLoader, File input) {
-            requireNonNull(classLoader, "classLoader cannot be null.");
-            requireNonNull(input, "input cannot be null.");
 
-            if (classLoader instanceof URLClassLoader) {
-                try {
-                    METHOD_ADD_URL.invoke(classLoader, new URL("jar:file:" + input.getPath() + "!/"));
-                } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException | MalformedURLException e) {
-                    throw new RelocatorException("Error while adding jar file : " + input.getName() + " to the class loader", e);
+    /**
+     * Repositories hosting, or not hosting, the artifacts of a cache folder
+     * <p>
+     * Positive entries remember the repository which hosted an artifact, they are kept
+     * until the repository fails to serve the artifact. Negative entries remember the
+     * repositories which answered they don't host an artifact, they expire after a while.
+     * <p>
+     * The cache also keeps the validators (ETag and Last-Modified) of the downloaded
+     * maven-metadata.xml files, with the latest version they resolved.
+     */
+    static class ResolutionCache {
+
+        // Name of the cache file in the cache folder
+        static final String FILE_NAME = ".dmrelocator-resolutions";
+        // Key prefixes
+        private static final String FOUND = "found:";
+        private static final String MISSING = "missing:";
+        private static final String METADATA = "metadata:";
+
+        private final Store store;
+
+        /**
+         * @param root cache folder
+         */
+        ResolutionCache(Path root) {
+            this.store = new Store(root.resolve(FILE_NAME));
+        }
+
+        /**
+         * Get the repository which hosted an artifact
+         *
+         * @param artifact     artifact
+         * @param repositories repositories currently in use
+         * @return the repository, or null if unknown or not in use anymore
+         */
+        Repository repository(Artifact artifact, List<Repository> repositories) {
+            String url = store.get(FOUND + artifact);
+            if (url == null) {
+                return null;
+            }
+            return repositories.stream().filter(r -> url.equals(r.toString())).findFirst().orElse(null);
+        }
+
+        /**
+         * @return true if the repository is known not to host the artifact
+         */
+        boolean isMissing(Artifact artifact, Repository repository) {
+            String key = MISSING + artifact + "@" + repository;
+            String expiry = store.get(key);
+            if (expiry == null) {
+                return false;
+            }
+            try {
+                if (Long.parseLong(expiry) > System.currentTimeMillis()) {
+                    return true;
                 }
+            } catch (NumberFormatException ignored) {
+                // Exception ignored
+            }
+            store.remove(key);
+            return false;
+        }
+
+        void found(Artifact artifact, Repository repository) {
+            store.put(FOUND + artifact, repository.toString());
+            store.remove(MISSING + artifact + "@" + repository);
+        }
+
+        void missing(Artifact artifact, Repository repository, long ttl) {
+            if (ttl > 0) {
+                store.put(MISSING + artifact + "@" + repository, Long.toString(System.currentTimeMillis() + ttl));
+            }
+        }
+
+        /**
+         * Get the validators of a stored maven-metadata.xml file
+         *
+         * @param url url of the meta data file
+         * @return the validators, or null if unknown
+         */
+        MetaData metaData(URL url) {
+            String value = store.get(METADATA + url);
+            if (value == null) {
+                return null;
+            }
+            String[] values = value.split("\n", -1);
+            if (values.length != 3 || (values[0].isEmpty() && values[1].isEmpty())) {
+                return null;
+            }
+            return new MetaData(values[0].isEmpty() ? null : values[0], values[1].isEmpty() ? null : values[1], values[2]);
+        }
+
+        void metaData(URL url, MetaData metaData) {
+            if (metaData.etag == null && metaData.lastModified == null) {
+                store.remove(METADATA + url);
             } else {
-                throw new RelocatorException("Unknown classloader: " + classLoader.getClass());
+                store.put(METADATA + url, (metaData.etag != null ? metaData.etag : "") + "\n"
+                        + (metaData.lastModified != null ? metaData.lastModified : "") + "\n"
+                        + metaData.latest);
+            }
+        }
+
+        /**
+         * Forget everything known about an artifact, including the validators of its metadata files
+         */
+        void invalidate(Artifact artifact) {
+            String metaDataPath = "/" + artifact.repositoryPath() + "/maven-metadata.xml";
+            store.remove(FOUND + artifact);
+            store.removeIf(key -> key.startsWith(MISSING + artifact + "@")
+                    || (key.startsWith(METADATA) && key.endsWith(metaDataPath)));
+        }
+
+        /**
+         * Forget everything
+         */
+        void clear() {
+            store.removeIf(key -> true);
+        }
+
+        void save() throws IOException {
+            store.save();
+        }
+
+        /**
+         * Validators of a maven-metadata.xml file
+         */
+        static class MetaData {
+            // ETag header
+            final String etag;
+            // Last-Modified header
+            final String lastModified;
+            // Latest version resolved from the file
+            final String latest;
+
+            MetaData(String etag, String lastModified, String latest) {
+                this.etag = etag;
+                this.lastModified = lastModified;
+                this.latest = latest;
+            }
+        }
+    }
+
+
+    /**
+     * Hash values computed while a file is written
+     */
+    static class Checksums {
+
+        private final MessageDigest sha1;
+        private final MessageDigest sha256;
+        private String sha1Value;
+        private String sha256Value;
+
+        /**
+         * @param sha256 also compute the sha256 hash value
+         */
+        Checksums(boolean sha256) {
+            try {
+                this.sha1 = MessageDigest.getInstance("SHA-1");
+                this.sha256 = sha256 ? MessageDigest.getInstance("SHA-256") : null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new RelocatorException("Unable to create message digest", e);
+            }
+        }
+
+        void update(byte[] bytes, int offset, int length) {
+            sha1.update(bytes, offset, length);
+            if (sha256 != null) {
+                sha256.update(bytes, offset, length);
+            }
+        }
+
+        /**
+         * @return sha1 hash value
+         */
+        String sha1() {
+            if (sha1Value == null) {
+                sha1Value = FileSha1.bytesToHexString(sha1.digest());
+            }
+            return sha1Value;
+        }
+
+        /**
+         * @return sha256 hash value, or null if not computed
+         */
+        String sha256() {
+            if (sha256Value == null && sha256 != null) {
+                sha256Value = FileSha1.bytesToHexString(sha256.digest());
             }
+            return sha256Value;
         }
     }
 
@@ -1143,6 +7023,12 @@ public class DMRelocator {
             try {
                 MessageDigest digest = MessageDigest.getInstance("SHA-1");
 
+                try (MappedFile mappedFile = MappedFile.open(file.toPath())) {
+                    if (mappedFile != null) {
+                        digest.update(mappedFile.buffer());
+                        return bytesToHexString(digest.digest());
+                    }
+                }
                 try (FileInputStream fileInputStream = new FileInputStream(file);
                      DigestInputStream digestInputStream = new DigestInputStream(fileInputStream, digest)
                 ) {
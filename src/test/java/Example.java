@@ -45,6 +45,24 @@ public class Example {
                     .cacheDir(cacheDir)
                     // (default to false)
                     .ignoreHash(false)
+                    // Number of artifacts downloaded at the same time (default to 4)
+                    .downloadThreads(4)
+                    // Number of artifacts relocated at the same time (default to the number of processors)
+                    .relocationThreads(4)
+                    // Relocation engine: JAR_RELOCATOR (default) or BUILT_IN, which does not download asm and jar-relocator
+                    .engine(DMRelocator.Engine.JAR_RELOCATOR)
+                    // Format of the relocated artifacts: JAR (default), STORED_JAR (uncompressed) or DIRECTORY (exploded, editable files)
+                    .outputFormat(DMRelocator.OutputFormat.JAR)
+                    // Load the artifacts with a DMRelocator class loader, see getClassLoader() and close() (default to false)
+                    .ownClassLoader(false)
+                    // Maintain JVM options creating and using a class data sharing archive of the artifacts (default to false)
+                    .classDataSharing(false)
+                    // Relocate each class when it is loaded instead of relocating the artifacts, see getClassLoader() (default to false)
+                    .lazy(false)
+                    // Reuse the artifacts of the lock manifest without network access, until refresh() (default to false)
+                    .locked(false)
+                    // Add the dependencies of the artifacts, read from their POM files (default to false)
+                    .transitive(false)
                     // logger
                     .logger(Example::log)
                     // Add repositories
@@ -0,0 +1,75 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.Downloader;
+import com.github.hexocraft.DMRelocator.Repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+
+/**
+ * Helpers shared by the benchmarks
+ * <p>
+ * The benchmarks are plain main classes, run from the project folder. They download their
+ * artifacts from Maven Central into target/benchmarks/cache.
+ */
+final class Benchmarks {
+
+    // Cache folder of the benchmarks
+    static final Path CACHE_DIR = Paths.get("target", "benchmarks", "cache").toAbsolutePath();
+    // Work folder of the benchmarks
+    static final Path WORK_DIR = Paths.get("target", "benchmarks", "work").toAbsolutePath();
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Download an artifact from Maven Central, if not already cached
+     *
+     * @return the cached jar file
+     */
+    static File download(Artifact artifact) throws IOException {
+        try (Downloader downloader = new Downloader(DMRelocator.Relocator(Benchmarks.class))) {
+            downloader.download(artifact, Collections.singletonList(new Repository(new URL("https://repo1.maven.org/maven2/"))), CACHE_DIR);
+        }
+        return artifact.toFile(CACHE_DIR);
+    }
+
+    /**
+     * Run a task several times
+     *
+     * @return the shortest run time, in milliseconds
+     */
+    static long best(int runs, Callable<?> task) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            task.call();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1_000_000;
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.ClassDataSharing;
+import com.github.hexocraft.DMRelocator.Engine;
+import com.github.hexocraft.DMRelocator.Relocation;
+import com.github.hexocraft.DMRelocator.Relocator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+
+/**
+ * Compare the time taken to load and link all the classes of a relocated guava through the
+ * DMRelocator class loader, with and without the class data sharing options (JDK 13+)
+ * <p>
+ * Usage: {@code ClassDataSharingBenchmark}. Each measure runs in a new JVM, whose class path only
+ * holds jar files as dynamic archives require: the compiled classes are packed into a jar first.
+ * The first JVM started with the options creates the archive, the next ones use it.
+ * The best of three runs is printed for each.
+ */
+class ClassDataSharingBenchmark {
+
+    private static final int RUNS = 3;
+    private static final Path LIB_DIR = Benchmarks.WORK_DIR.resolve("cds");
+    private static final Artifact GUAVA = new Artifact("com.google.guava", "guava", "30.0-jre");
+    // Prefix of the line printed by the benchmark JVM, the JVM may log other lines
+    private static final String RESULT = "load time: ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            load();
+            return;
+        }
+        if (!ClassDataSharing.isSupported()) {
+            System.out.println("Class data sharing of the relocated artifacts needs Java 13 or later");
+            return;
+        }
+
+        Benchmarks.download(GUAVA);
+        Relocator.deleteRecursively(LIB_DIR);
+        File launcher = launcher();
+
+        // Archive created at the end of the first run
+        run(launcher, true);
+        long shared = Long.MAX_VALUE;
+        long unshared = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            shared = Math.min(shared, run(launcher, true));
+            unshared = Math.min(unshared, run(launcher, false));
+        }
+        System.out.printf("guava: %d ms with class data sharing, %d ms without%n", shared, unshared);
+    }
+
+    /**
+     * Relocate guava, then load and link all its classes, and print the time taken by the loading
+     */
+    private static void load() throws Exception {
+        DMRelocator dmRelocator = DMRelocator.Relocator(ClassDataSharingBenchmark.class)
+                .cacheDir(Benchmarks.CACHE_DIR)
+                .libDir(LIB_DIR)
+                .engine(Engine.BUILT_IN)
+                .ownClassLoader(true)
+                .classDataSharing(true)
+                .logger(message -> {
+                })
+                .addArtifact(GUAVA)
+                .addRelocation(new Relocation("com.google", "libs.google"))
+                .relocate();
+
+        List<String> classNames = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(GUAVA.toFile(LIB_DIR.toAbsolutePath()))) {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && !name.contains("-")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        for (String className : classNames) {
+            try {
+                Class.forName(className, true, dmRelocator.getClassLoader());
+            } catch (LinkageError | ClassNotFoundException ignored) {
+                // Classes depending on optional libraries
+            }
+        }
+        System.out.println(RESULT + (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Run {@link #load()} in a new JVM
+     *
+     * @return the time taken by the loading, in milliseconds
+     */
+    private static long run(File launcher, boolean classDataSharing) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", launcher.getPath()));
+        Path options = LIB_DIR.resolve(ClassDataSharing.OPTIONS_FILE_NAME);
+        if (classDataSharing && Files.isRegularFile(options)) {
+            command.add("@" + options);
+        }
+        command.addAll(Arrays.asList(ClassDataSharingBenchmark.class.getName(), "load"));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                output.append(line).append('\n');
+                if (line.startsWith(RESULT)) {
+                    result = line.substring(RESULT.length());
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("The benchmark JVM failed:\n" + output);
+        }
+        return Long.parseLong(result);
+    }
+
+    /**
+     * Pack the classes of the current class path into a jar file
+     */
+    private static File launcher() throws IOException {
+        File launcher = Benchmarks.WORK_DIR.resolve("cds-launcher.jar").toFile();
+        Files.createDirectories(Benchmarks.WORK_DIR);
+        try (JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(launcher))) {
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                Path root = Paths.get(entry);
+                if (!Files.isDirectory(root)) {
+                    continue;
+                }
+                try (Stream<Path> files = Files.walk(root)) {
+                    for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                        jarOut.putNextEntry(new JarEntry(root.relativize(file).toString().replace(File.separatorChar, '/')));
+                        Files.copy(file, jarOut);
+                    }
+                }
+            }
+        }
+        return launcher;
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.OutputFormat;
+import com.github.hexocraft.DMRelocator.Relocation;
+import com.github.hexocraft.DMRelocator.RelocationRules;
+import com.github.hexocraft.DMRelocator.Relocator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+
+/**
+ * Compare the scan deciding that guava has nothing to relocate with a relocation of guava
+ * <p>
+ * Usage: {@code CopyThroughBenchmark}, prints the best of five runs of each.
+ */
+class CopyThroughBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        File guava = Benchmarks.download(new Artifact("com.google.guava", "guava", "30.0-jre"));
+        RelocationRules unrelated = new RelocationRules(Collections.singletonList(new Relocation("org.yaml.snakeyaml", "libs.snakeyaml")));
+        RelocationRules google = new RelocationRules(Collections.singletonList(new Relocation("com.google", "libs.google")));
+        File output = Benchmarks.WORK_DIR.resolve("guava-relocated.jar").toFile();
+        Files.createDirectories(Benchmarks.WORK_DIR);
+
+        long scan = Benchmarks.best(RUNS, () -> Relocator.needsRelocation(guava, unrelated));
+        long relocation = Benchmarks.best(RUNS, () -> {
+            Files.deleteIfExists(output.toPath());
+            Relocator.relocateJar(guava, output, google, OutputFormat.JAR, null);
+            return null;
+        });
+
+        System.out.printf("guava: scan with nothing to relocate %d ms, relocation %d ms%n", scan, relocation);
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.DependencyResolver;
+import com.github.hexocraft.DMRelocator.Downloader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Measure the resolution of the dependencies of maven-core from Maven Central, with an empty
+ * cache folder, then with the POM files already in the cache folder
+ * <p>
+ * Usage: {@code DependencyResolverBenchmark}, prints the best of three runs of each.
+ */
+class DependencyResolverBenchmark {
+
+    private static final int RUNS = 3;
+    private static final List<Artifact> ARTIFACTS = Collections.singletonList(new Artifact("org.apache.maven", "maven-core", "3.6.3"));
+
+    public static void main(String[] args) throws Exception {
+        Path cacheDir = Benchmarks.WORK_DIR.resolve("resolver-cache");
+        int[] count = new int[1];
+
+        long cold = Benchmarks.best(RUNS, () -> {
+            if (Files.exists(cacheDir)) {
+                Downloader.deleteDir(cacheDir);
+            }
+            count[0] = resolve(cacheDir).size();
+            return null;
+        });
+        long warm = Benchmarks.best(RUNS, () -> resolve(cacheDir));
+
+        System.out.printf("maven-core: %d artifacts, cold cache %d ms, warm cache %d ms%n", count[0], cold, warm);
+    }
+
+    private static List<Artifact> resolve(Path cacheDir) throws Exception {
+        DMRelocator dmRelocator = DMRelocator.Relocator(DependencyResolverBenchmark.class).cacheDir(cacheDir).addMavenCentral().logger(message -> {
+        });
+        try (Downloader downloader = new Downloader(dmRelocator)) {
+            return new DependencyResolver(dmRelocator, downloader).resolve(ARTIFACTS);
+        }
+    }
+}
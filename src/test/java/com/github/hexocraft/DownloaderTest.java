@@ -18,21 +18,40 @@ package com.github.hexocraft;
  */
 
 import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.DependencyResolver;
 import com.github.hexocraft.DMRelocator.Downloader;
+import com.github.hexocraft.DMRelocator.RelocatorException;
 import com.github.hexocraft.DMRelocator.Repository;
+import com.github.hexocraft.DMRelocator.ResolutionCache;
+import com.github.hexocraft.DMRelocator.Transport;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 
 class DownloaderTest {
@@ -94,6 +113,56 @@ class DownloaderTest {
         });
     }
 
+    @Test
+    void ArtifactFromRepositoriesWithChecksums() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("org.apache.commons", "commons-lang3", "3.11");
+            Downloader downloader = new Downloader(DMRelocator.Relocator(this.getClass()).verifyChecksums(true));
+            downloader.download(artifact, repositories, tmpDir);
+
+            Assertions.assertTrue(tmpDir.resolve(artifact.toPath()).toFile().exists());
+        });
+    }
+
+    @Test
+    void ArtifactFromRepositoriesWithHttp2() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("org.apache.commons", "commons-text", "1.9");
+            Downloader downloader = new Downloader(DMRelocator.Relocator(this.getClass()).transport(Transport.http2()));
+            downloader.download(artifact, repositories, tmpDir);
+
+            Assertions.assertTrue(tmpDir.resolve(artifact.toPath()).toFile().exists());
+        });
+    }
+
+    @Test
+    void UseDefaultProxySelectorWithHttp2() {
+        Assertions.assertDoesNotThrow(() -> {
+            List<URI> selected = Collections.synchronizedList(new LinkedList<>());
+            ProxySelector defaultSelector = ProxySelector.getDefault();
+            ProxySelector.setDefault(new ProxySelector() {
+                @Override
+                public List<Proxy> select(URI uri) {
+                    selected.add(uri);
+                    return Collections.singletonList(Proxy.NO_PROXY);
+                }
+
+                @Override
+                public void connectFailed(URI uri, SocketAddress address, IOException e) {
+                }
+            });
+            try {
+                Transport transport = Transport.http2();
+                // Nothing listens on this port
+                URL url = new URL("http://127.0.0.1:1/maven2/");
+                Assertions.assertThrows(IOException.class, () -> transport.get(url, Collections.emptyMap()).close());
+                Assertions.assertTrue(selected.stream().anyMatch(uri -> uri.getPort() == 1));
+            } finally {
+                ProxySelector.setDefault(defaultSelector);
+            }
+        });
+    }
+
     @Test
     void ArtifactFromRepositoriesSnapshot() {
         Assertions.assertDoesNotThrow(() -> {
@@ -106,4 +175,263 @@ class DownloaderTest {
         });
     }
 
+
+    @Test
+    void RejectChecksumMismatch() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("org.example", "tampered", "1.0");
+            Repository repository = new Repository(new URL("https://repository.example.org/maven2/")).name("example");
+            URL url = artifact.getArtifactUrl(repository.url());
+            // The body of the artifact is only served once the checksum file has been requested
+            CountDownLatch checksumRequested = new CountDownLatch(1);
+            StubTransport stub = new StubTransport()
+                    .put(url.toString(), "tampered")
+                    .put(url + ".sha1", "0123456789abcdef0123456789abcdef01234567  tampered-1.0.jar")
+                    .gate(url.toString(), checksumRequested);
+            Transport transport = (requested, headers) -> {
+                if (requested.toString().endsWith(".sha1")) {
+                    checksumRequested.countDown();
+                }
+                return stub.get(requested, headers);
+            };
+            Path cache = tmpDir.resolve("tampered");
+
+            try (Downloader downloader = new Downloader(DMRelocator.Relocator(this.getClass()).verifyChecksums(true).transport(transport))) {
+                RelocatorException exception = Assertions.assertThrows(RelocatorException.class,
+                        () -> downloader.download(artifact, Collections.singletonList(repository), cache));
+                Assertions.assertTrue(exception.getMessage().contains("sha1 checksum mismatch"));
+            }
+
+            // Nothing is left in the cache folder
+            File file = artifact.toFile(cache);
+            Assertions.assertFalse(file.exists());
+            Assertions.assertFalse(Downloader.partialFile(file).exists());
+            Assertions.assertEquals(1, stub.count(url + ".sha1"));
+        });
+    }
+
+    @Test
+    void ResumeOnlyTheAcceptedResolution() {
+        Assertions.assertDoesNotThrow(() -> {
+            byte[] content = new byte[256 * 1024];
+            new Random(4).nextBytes(content);
+            Artifact artifact = new Artifact("org.example", "hedged", "1.0");
+            Repository first = new Repository(new URL("https://first.example.org/maven2/")).name("first");
+            Repository second = new Repository(new URL("https://second.example.org/maven2/")).name("second");
+            StubTransport transport = new StubTransport()
+                    .put(artifact.getArtifactUrl(first.url()).toString(), content)
+                    .put(artifact.getArtifactUrl(second.url()).toString(), content);
+
+            // Half of the artifact was downloaded by a previous run
+            Path cache = tmpDir.resolve("hedged");
+            File file = artifact.toFile(cache);
+            Downloader.makeDir(file.getParentFile().toPath());
+            Files.write(Downloader.partialFile(file).toPath(), Arrays.copyOf(content, content.length / 2));
+
+            try (Downloader downloader = new Downloader(DMRelocator.Relocator(this.getClass()).hedgedResolution(2).transport(transport))) {
+                downloader.download(artifact, Arrays.asList(first, second), cache);
+            }
+
+            // Only the accepted repository was asked to resume the download
+            Assertions.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            List<String> ranges = transport.requests.stream().filter(r -> r.startsWith("RANGE ")).collect(Collectors.toList());
+            Assertions.assertEquals(Collections.singletonList("RANGE " + artifact.getArtifactUrl(first.url())), ranges);
+        });
+    }
+
+
+    @Test
+    void ResolveArtifactPublishedAfterMissing() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("org.example", "published", "1.0");
+            Repository repository = new Repository(new URL("https://repository.example.org/maven2/")).name("example");
+            StubTransport transport = new StubTransport();
+            DMRelocator dmRelocator = DMRelocator.Relocator(this.getClass()).transport(transport).resolutionCacheTtl(1, TimeUnit.HOURS);
+            Path cache = tmpDir.resolve("published");
+
+            // The repository answers 404
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                Assertions.assertThrows(RelocatorException.class, () -> downloader.download(artifact, Collections.singletonList(repository), cache));
+            }
+            Assertions.assertTrue(new ResolutionCache(cache).isMissing(artifact, repository));
+
+            // The artifact is published, the only repository is probed again
+            transport.put(artifact.getArtifactUrl(repository.url()).toString(), "published");
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                downloader.download(artifact, Collections.singletonList(repository), cache);
+            }
+            Assertions.assertEquals("published", new String(Files.readAllBytes(artifact.toFile(cache).toPath()), StandardCharsets.UTF_8));
+            Assertions.assertFalse(new ResolutionCache(cache).isMissing(artifact, repository));
+        });
+    }
+
+    @Test
+    void InvalidateResolutions() {
+        Assertions.assertDoesNotThrow(() -> {
+            // The second version is changed by url encoding
+            for (String version : new String[]{"1.0-SNAPSHOT", "1.0+local-SNAPSHOT"}) {
+                Artifact artifact = new Artifact("org.example", "invalidated", version);
+                Repository repository = new Repository(new URL("https://repository.example.org/maven2/")).name("example");
+                URL metaDataUrl = artifact.getMetaDataUrl(repository.url());
+                Path cache = tmpDir.resolve("invalidated");
+
+                ResolutionCache resolutionCache = new ResolutionCache(cache);
+                resolutionCache.found(artifact, repository);
+                resolutionCache.metaData(metaDataUrl, new ResolutionCache.MetaData("\"etag\"", null, "1.0-20201105.123456-8"));
+                resolutionCache.save();
+                DMRelocator.Relocator(this.getClass()).cacheDir(cache).invalidateResolutions(artifact);
+
+                resolutionCache = new ResolutionCache(cache);
+                Assertions.assertNull(resolutionCache.repository(artifact, Collections.singletonList(repository)));
+                Assertions.assertNull(resolutionCache.metaData(metaDataUrl), version);
+            }
+        });
+    }
+
+
+    @Test
+    void ParsePom() {
+        Assertions.assertDoesNotThrow(() -> {
+            String xml = "<project><parent><groupId>org.example</groupId><artifactId>parent</artifactId><version>1.0</version></parent>"
+                    + "<artifactId>child</artifactId><packaging>jar</packaging>"
+                    + "<properties><lib.version>2.1</lib.version></properties>"
+                    + "<dependencyManagement><dependencies>"
+                    + "<dependency><groupId>org.example</groupId><artifactId>managed</artifactId><version>${lib.version}</version></dependency>"
+                    + "</dependencies></dependencyManagement>"
+                    + "<dependencies>"
+                    + "<dependency><groupId>org.example</groupId><artifactId>managed</artifactId>"
+                    + "<exclusions><exclusion><groupId>org.excluded</groupId><artifactId>*</artifactId></exclusion></exclusions></dependency>"
+                    + "<dependency><groupId>org.example</groupId><artifactId>tests</artifactId><version>1.0</version><scope>test</scope></dependency>"
+                    + "</dependencies>"
+                    + "<build><plugins><plugin><dependencies><dependency><artifactId>plugin</artifactId></dependency></dependencies></plugin></plugins></build>"
+                    + "</project>";
+            DependencyResolver.Pom pom = DependencyResolver.Pom.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+            Assertions.assertNull(pom.groupId);
+            Assertions.assertEquals("org.example", pom.parentGroupId);
+            Assertions.assertEquals("child", pom.artifactId);
+            Assertions.assertEquals("2.1", pom.properties.get("lib.version"));
+            Assertions.assertEquals(1, pom.managedDependencies.size());
+            Assertions.assertEquals(2, pom.dependencies.size());
+            Assertions.assertNull(pom.dependencies.get(0).version);
+            Assertions.assertTrue(pom.dependencies.get(0).exclusions.contains("org.excluded:*"));
+            Assertions.assertFalse(pom.dependencies.get(1).isResolvable());
+            Assertions.assertEquals("2.1", pom.managedDependencies.get(0).interpolate(pom.properties).version);
+            Assertions.assertEquals("1.2", DependencyResolver.Pom.version("[1.2,2.0)"));
+            Assertions.assertThrows(RelocatorException.class, () -> DependencyResolver.Pom.version("(1.0,2.0)"));
+            Assertions.assertThrows(RelocatorException.class, () -> DependencyResolver.Pom.version("(,1.0]"));
+        });
+    }
+
+    @Test
+    void ResolveDependencyGraph() {
+        Assertions.assertDoesNotThrow(() -> {
+            Repository repository = new Repository(new URL("https://repository.example.org/maven2/")).name("example");
+            StubTransport transport = new StubTransport();
+            putPom(transport, repository, "parent", "1.0", "<packaging>pom</packaging>"
+                    + "<properties><lib.version>2.0</lib.version></properties>"
+                    + "<dependencyManagement><dependencies>" + dependency("managed", "${lib.version}", "") + dependency("both", "1.0", "")
+                    + "</dependencies></dependencyManagement>");
+            putPom(transport, repository, "bom", "1.0", "<packaging>pom</packaging>"
+                    + "<dependencyManagement><dependencies>" + dependency("from-bom", "3.0", "") + dependency("both", "9.0", "")
+                    + "</dependencies></dependencyManagement>");
+            putPom(transport, repository, "app", "1.0", "<parent><groupId>org.example</groupId><artifactId>parent</artifactId><version>1.0</version></parent>"
+                    + "<properties><lib.version>2.5</lib.version></properties>"
+                    + "<dependencyManagement><dependencies>" + dependency("bom", "1.0", "<type>pom</type><scope>import</scope>") + "</dependencies></dependencyManagement>"
+                    + "<dependencies>"
+                    + dependency("a", "1.0", "<exclusions><exclusion><groupId>org.example</groupId><artifactId>excluded</artifactId></exclusion></exclusions>")
+                    + dependency("b", "1.0", "")
+                    + dependency("managed", null, "")
+                    + dependency("from-bom", null, "")
+                    + dependency("both", null, "")
+                    + dependency("tests", "1.0", "<scope>test</scope>")
+                    + dependency("unversioned", null, "")
+                    + "</dependencies>");
+            putPom(transport, repository, "a", "1.0", "<dependencies>" + dependency("shared", "1.0", "") + dependency("excluded", "1.0", "") + "</dependencies>");
+            putPom(transport, repository, "b", "1.0", "<dependencies>" + dependency("c", "[1.0,2.0)", "") + "</dependencies>");
+            putPom(transport, repository, "c", "1.0", "<dependencies>" + dependency("shared", "2.0", "") + "</dependencies>");
+
+            List<String> logs = Collections.synchronizedList(new LinkedList<>());
+            DMRelocator dmRelocator = DMRelocator.Relocator(this.getClass()).cacheDir(tmpDir.resolve("graph")).transport(transport)
+                    .addRepository(repository).logger(logs::add);
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                List<Artifact> artifacts = new DependencyResolver(dmRelocator, downloader)
+                        .resolve(Collections.singletonList(new Artifact("org.example", "app", "1.0")));
+                List<String> names = artifacts.stream().map(Artifact::toString).collect(Collectors.toList());
+
+                // Breadth first, the nearest version of shared wins, excluded is excluded from a
+                // The property of the child applies to the management of the parent, which wins over the BOM
+                Assertions.assertEquals(Arrays.asList("org.example:app:1.0", "org.example:a:1.0", "org.example:b:1.0", "org.example:managed:2.5",
+                        "org.example:from-bom:3.0", "org.example:both:1.0", "org.example:shared:1.0", "org.example:c:1.0"), names);
+                Assertions.assertTrue(logs.stream().anyMatch(log -> log.startsWith("Skipped org.example:unversioned")));
+            }
+
+            // Exclusive lower bounds are not supported
+            putPom(transport, repository, "ranged", "1.0", "<dependencies>" + dependency("c", "(1.0,2.0)", "") + "</dependencies>");
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                RelocatorException exception = Assertions.assertThrows(RelocatorException.class, () -> new DependencyResolver(dmRelocator, downloader)
+                        .resolve(Collections.singletonList(new Artifact("org.example", "ranged", "1.0"))));
+                Assertions.assertTrue(exception.getMessage().contains("(1.0,2.0)"));
+            }
+        });
+    }
+
+    @Test
+    void DetectCyclicImportsAcrossThreads() {
+        Assertions.assertDoesNotThrow(() -> {
+            Repository repository = new Repository(new URL("https://repository.example.org/maven2/")).name("example");
+            StubTransport stub = new StubTransport();
+            putPom(stub, repository, "bom-x", "1.0", "<packaging>pom</packaging><dependencyManagement><dependencies>"
+                    + dependency("bom-y", "1.0", "<type>pom</type><scope>import</scope>") + "</dependencies></dependencyManagement>");
+            putPom(stub, repository, "bom-y", "1.0", "<packaging>pom</packaging><dependencyManagement><dependencies>"
+                    + dependency("bom-x", "1.0", "<type>pom</type><scope>import</scope>") + "</dependencies></dependencyManagement>");
+
+            // Both POM files are downloaded at the same time, each by its own thread
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            Transport transport = (url, headers) -> {
+                if (url.getPath().endsWith(".pom")) {
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return stub.get(url, headers);
+            };
+            DMRelocator dmRelocator = DMRelocator.Relocator(this.getClass()).cacheDir(tmpDir.resolve("cycle")).transport(transport)
+                    .addRepository(repository).downloadThreads(2);
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                DependencyResolver resolver = new DependencyResolver(dmRelocator, downloader);
+                List<Artifact> boms = Arrays.asList(new Artifact("org.example", "bom-x", "1.0"), new Artifact("org.example", "bom-y", "1.0"));
+                RelocatorException exception = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(30),
+                        () -> Assertions.assertThrows(RelocatorException.class, () -> resolver.resolve(boms)));
+                Assertions.assertTrue(exception.getCause().getMessage().startsWith("Cyclic"));
+            }
+        });
+    }
+
+    private static void putPom(StubTransport transport, Repository repository, String artifactId, String version, String content) throws IOException {
+        Artifact artifact = new Artifact("org.example", artifactId, version);
+        transport.put(artifact.getPomUrl(repository.url(), artifact.name()).toString(),
+                "<project><groupId>org.example</groupId><artifactId>" + artifactId + "</artifactId><version>" + version + "</version>" + content + "</project>");
+    }
+
+    private static String dependency(String artifactId, String version, String content) {
+        return "<dependency><groupId>org.example</groupId><artifactId>" + artifactId + "</artifactId>"
+                + (version != null ? "<version>" + version + "</version>" : "") + content + "</dependency>";
+    }
+
+    @Test
+    void ResolveTransitiveDependencies() {
+        Assertions.assertDoesNotThrow(() -> {
+            DMRelocator dmRelocator = DMRelocator.Relocator(this.getClass()).cacheDir(tmpDir).addMavenCentral();
+            try (Downloader downloader = new Downloader(dmRelocator)) {
+                List<Artifact> artifacts = new DependencyResolver(dmRelocator, downloader)
+                        .resolve(Collections.singletonList(new Artifact("org.apache.commons", "commons-text", "1.9")));
+                List<String> names = artifacts.stream().map(Artifact::toString).collect(Collectors.toList());
+
+                Assertions.assertEquals(Arrays.asList("org.apache.commons:commons-text:1.9", "org.apache.commons:commons-lang3:3.11"), names);
+            }
+        });
+    }
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.LibraryClassLoader;
+import com.github.hexocraft.DMRelocator.OutputFormat;
+import com.github.hexocraft.DMRelocator.Relocation;
+import com.github.hexocraft.DMRelocator.RelocationRules;
+import com.github.hexocraft.DMRelocator.Relocator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+
+/**
+ * Compare the time to a first call of ImmutableList.of when guava is relocated when its classes are
+ * loaded, and when guava is relocated first
+ * <p>
+ * Usage: {@code LazyRelocationBenchmark}, prints the best of five runs of each.
+ */
+class LazyRelocationBenchmark {
+
+    private static final int RUNS = 5;
+    private static final String IMMUTABLE_LIST = "libs.google.common.collect.ImmutableList";
+
+    public static void main(String[] args) throws Exception {
+        File guava = Benchmarks.download(new Artifact("com.google.guava", "guava", "30.0-jre"));
+        RelocationRules rules = new RelocationRules(Collections.singletonList(new Relocation("com.google", "libs.google")));
+        File output = Benchmarks.WORK_DIR.resolve("guava-lazy.jar").toFile();
+        Files.createDirectories(Benchmarks.WORK_DIR);
+
+        long lazy = Benchmarks.best(RUNS, () -> {
+            try (LibraryClassLoader classLoader = new LibraryClassLoader(LazyRelocationBenchmark.class.getClassLoader())) {
+                classLoader.addLibrary(guava, rules);
+                return firstList(classLoader);
+            }
+        });
+        long eager = Benchmarks.best(RUNS, () -> {
+            Files.deleteIfExists(output.toPath());
+            Relocator.relocateJar(guava, output, rules, OutputFormat.JAR, null);
+            try (LibraryClassLoader classLoader = new LibraryClassLoader(LazyRelocationBenchmark.class.getClassLoader())) {
+                classLoader.addLibrary(output);
+                return firstList(classLoader);
+            }
+        });
+
+        System.out.printf("guava: first ImmutableList.of relocated when loaded %d ms, relocated first %d ms%n", lazy, eager);
+    }
+
+    private static Object firstList(ClassLoader classLoader) throws Exception {
+        Class<?> immutableList = Class.forName(IMMUTABLE_LIST, true, classLoader);
+        return immutableList.getMethod("of", Object.class).invoke(null, "value");
+    }
+}
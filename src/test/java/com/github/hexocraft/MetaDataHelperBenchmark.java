@@ -0,0 +1,79 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Downloader.MetaDataHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+/**
+ * Measure the time MetaDataHelper takes to parse a maven-metadata.xml file
+ * <p>
+ * Usage: {@code MetaDataHelperBenchmark [maven-metadata.xml]}, a sample snapshot metadata file is used by default.
+ * <p>
+ * The first parse includes the initialisation of the XML parser. The JAXB parser can be measured
+ * by running this class against the tree before the StAX parser, with JAXB 2.3.3 on the class path.
+ */
+class MetaDataHelperBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 5000;
+
+    public static void main(String[] args) throws IOException {
+        File file = args.length > 0 ? new File(args[0]) : sample();
+
+        long start = System.nanoTime();
+        String latest = new MetaDataHelper(file).getLatest();
+        long first = System.nanoTime() - start;
+
+        for (int i = 0; i < WARMUP; i++) {
+            new MetaDataHelper(file).getLatest();
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            new MetaDataHelper(file).getLatest();
+        }
+        long steady = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.printf("latest %s: first parse %d ms, steady state %d us/op%n", latest, first / 1_000_000, steady / 1_000);
+    }
+
+    /**
+     * Write a snapshot metadata file listing a few builds
+     */
+    private static File sample() throws IOException {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<metadata modelVersion=\"1.1.0\">\n"
+                + "  <groupId>co.aikar</groupId>\n  <artifactId>acf-core</artifactId>\n  <version>0.5.0-SNAPSHOT</version>\n"
+                + "  <versioning>\n    <snapshot>\n      <timestamp>20201105.123456</timestamp>\n      <buildNumber>8</buildNumber>\n    </snapshot>\n"
+                + "    <lastUpdated>20201105123456</lastUpdated>\n    <snapshotVersions>\n");
+        for (String extension : new String[]{"pom", "jar"}) {
+            builder.append("      <snapshotVersion>\n        <extension>").append(extension).append("</extension>\n")
+                    .append("        <value>0.5.0-20201105.123456-8</value>\n        <updated>20201105123456</updated>\n      </snapshotVersion>\n");
+        }
+        builder.append("    </snapshotVersions>\n  </versioning>\n</metadata>\n");
+
+        File file = File.createTempFile("maven-metadata", ".xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
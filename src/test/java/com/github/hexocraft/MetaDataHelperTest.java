@@ -0,0 +1,74 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Downloader.MetaDataHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+class MetaDataHelperTest {
+
+    private static final String METADATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<metadata modelVersion=\"1.1.0\">\n" +
+            "  <groupId>co.aikar</groupId>\n" +
+            "  <artifactId>acf-core</artifactId>\n" +
+            "  <version>0.5.0-SNAPSHOT</version>\n" +
+            "  <versioning>\n" +
+            "    <snapshot>\n" +
+            "      <timestamp>20201105.123456</timestamp>\n" +
+            "      <buildNumber>7</buildNumber>\n" +
+            "    </snapshot>\n" +
+            "    <lastUpdated>20201105123456</lastUpdated>\n" +
+            "    <snapshotVersions>\n" +
+            "      <snapshotVersion>\n" +
+            "        <classifier>sources</classifier>\n" +
+            "        <extension>jar</extension>\n" +
+            "        <value>0.5.0-20201105.123456-7</value>\n" +
+            "      </snapshotVersion>\n" +
+            "      <snapshotVersion>\n" +
+            "        <extension>pom</extension>\n" +
+            "        <value>0.5.0-20201105.123456-7</value>\n" +
+            "      </snapshotVersion>\n" +
+            "      <snapshotVersion>\n" +
+            "        <extension>jar</extension>\n" +
+            "        <value>0.5.0-20201105.123456-8</value>\n" +
+            "      </snapshotVersion>\n" +
+            "    </snapshotVersions>\n" +
+            "  </versioning>\n" +
+            "</metadata>\n";
+
+    @Test
+    void Latest() {
+        MetaDataHelper metaDataHelper = new MetaDataHelper(new ByteArrayInputStream(METADATA.getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertTrue(metaDataHelper.isValid());
+        Assertions.assertEquals("0.5.0-20201105.123456-8", metaDataHelper.getLatest());
+    }
+
+    @Test
+    void Invalid() {
+        String metadata = "<metadata><groupId>co.aikar</groupId><plugins><plugin><name>x</name></plugin></plugins></metadata>";
+        MetaDataHelper metaDataHelper = new MetaDataHelper(new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertFalse(metaDataHelper.isValid());
+        Assertions.assertEquals("", metaDataHelper.getLatest());
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Artifact;
+import com.github.hexocraft.DMRelocator.OutputFormat;
+import com.github.hexocraft.DMRelocator.Relocation;
+import com.github.hexocraft.DMRelocator.RelocationRules;
+import com.github.hexocraft.DMRelocator.Relocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Compare the time taken to load all the classes of a relocated guava from each output format
+ * <p>
+ * Usage: {@code OutputFormatBenchmark [JAR|STORED_JAR|DIRECTORY...]}, prints the best of three runs of each format
+ * (all of them by default) and the size of the output files. Run it on a single core (for example with taskset -c 0)
+ * to leave out the parallel class loading of the JVM, and with one format per JVM to leave out the warm-up of the
+ * formats measured first.
+ */
+class OutputFormatBenchmark {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        File guava = Benchmarks.download(new Artifact("com.google.guava", "guava", "30.0-jre"));
+        RelocationRules rules = new RelocationRules(Collections.singletonList(new Relocation("com.google", "libs.google")));
+
+        // Classes to load, from the relocated jar
+        List<String> classNames = new ArrayList<>();
+        File jar = output(guava, rules, OutputFormat.JAR);
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && !name.contains("-")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        }
+
+        List<OutputFormat> formats = new ArrayList<>();
+        for (String arg : args) {
+            formats.add(OutputFormat.valueOf(arg));
+        }
+        for (OutputFormat format : formats.isEmpty() ? Arrays.asList(OutputFormat.values()) : formats) {
+            File output = output(guava, rules, format);
+            URL url = output.isDirectory() ? output.toURI().toURL() : new URL("jar:" + output.toURI() + "!/");
+            int[] loaded = new int[1];
+            long best = Benchmarks.best(RUNS, () -> {
+                loaded[0] = 0;
+                try (URLClassLoader classLoader = new URLClassLoader(new URL[]{url}, null)) {
+                    for (String className : classNames) {
+                        try {
+                            Class.forName(className, false, classLoader);
+                            loaded[0]++;
+                        } catch (LinkageError | ClassNotFoundException ignored) {
+                            // Classes depending on optional libraries
+                        }
+                    }
+                }
+                return null;
+            });
+            System.out.printf("%s: %d classes loaded in %d ms, %.1f MB%n", format, loaded[0], best, size(output.toPath()) / 1e6);
+        }
+    }
+
+    /**
+     * Relocate guava to an output format
+     */
+    private static File output(File guava, RelocationRules rules, OutputFormat format) throws IOException {
+        File output = Benchmarks.WORK_DIR.resolve("guava-" + format.name().toLowerCase()).toFile();
+        Relocator.deleteRecursively(output.toPath());
+        Files.createDirectories(Benchmarks.WORK_DIR);
+        Relocator.relocateJar(guava, output, rules, format, null);
+        return output;
+    }
+
+    private static long size(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+}
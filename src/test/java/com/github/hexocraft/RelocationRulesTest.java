@@ -0,0 +1,84 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Relocation;
+import com.github.hexocraft.DMRelocator.RelocationRules;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+class RelocationRulesTest {
+
+    private final RelocationRules rules = new RelocationRules(Arrays.asList(
+            new Relocation("com.google", "shaded.google"),
+            new Relocation("org.yaml.snakeyaml", "shaded.snakeyaml")));
+
+    @Test
+    void InternalName() {
+        Assertions.assertEquals("shaded/google/gson/Gson", rules.mapInternalName("com/google/gson/Gson"));
+        Assertions.assertEquals("shaded/google/gson/Gson.class", rules.mapInternalName("com/google/gson/Gson.class"));
+        Assertions.assertEquals("java/lang/String", rules.mapInternalName("java/lang/String"));
+    }
+
+    @Test
+    void Descriptor() {
+        Assertions.assertEquals("(ILshaded/google/gson/Gson;[Ljava/lang/String;)[[Lshaded/snakeyaml/Yaml;",
+                rules.mapDescriptor("(ILcom/google/gson/Gson;[Ljava/lang/String;)[[Lorg/yaml/snakeyaml/Yaml;"));
+    }
+
+    @Test
+    void Signature() {
+        Assertions.assertEquals("<TLIST:Ljava/lang/Object;K::Ljava/lang/Comparable<-TK;>;>Lshaded/google/common/collect/Outer<TK;>.Inner<*+Lshaded/google/gson/Gson;>;Ljava/io/Serializable;",
+                rules.mapSignature("<TLIST:Ljava/lang/Object;K::Ljava/lang/Comparable<-TK;>;>Lcom/google/common/collect/Outer<TK;>.Inner<*+Lcom/google/gson/Gson;>;Ljava/io/Serializable;"));
+        Assertions.assertEquals("<T:Ljava/lang/Object;>(TT;[Lshaded/google/gson/Gson;)Ljava/util/List<TT;>;^Lshaded/google/gson/JsonIOException;^TX;",
+                rules.mapSignature("<T:Ljava/lang/Object;>(TT;[Lcom/google/gson/Gson;)Ljava/util/List<TT;>;^Lcom/google/gson/JsonIOException;^TX;"));
+    }
+
+    @Test
+    void Value() {
+        Assertions.assertEquals("shaded.google.gson.Gson", rules.mapValue("com.google.gson.Gson"));
+        Assertions.assertEquals("shaded/snakeyaml/version.properties", rules.mapValue("org/yaml/snakeyaml/version.properties"));
+        Assertions.assertEquals("/shaded/snakeyaml/version.properties", rules.mapValue("/org/yaml/snakeyaml/version.properties"));
+        Assertions.assertEquals("[Lshaded/google/gson/Gson;", rules.mapValue("[Lcom/google/gson/Gson;"));
+        Assertions.assertEquals("Hello world", rules.mapValue("Hello world"));
+    }
+
+    @Test
+    void FirstRuleWins() {
+        RelocationRules overlapping = new RelocationRules(Arrays.asList(
+                new Relocation("com.google", "shaded.google"),
+                new Relocation("com.google.gson", "shaded.gson")));
+        Assertions.assertEquals("shaded/google/gson/Gson", overlapping.mapInternalName("com/google/gson/Gson"));
+        Assertions.assertEquals("shaded.google.gson.Gson", overlapping.mapValue("com.google.gson.Gson"));
+    }
+
+    @Test
+    void IncludeExclude() {
+        RelocationRules filtered = new RelocationRules(Arrays.asList(
+                new Relocation("com.google", "shaded.google").include("com.google.gson.**").exclude("com.google.gson.internal.*"),
+                new Relocation("com.google.gson.internal", "shaded.internal")));
+        Assertions.assertEquals("shaded/google/gson/Gson", filtered.mapInternalName("com/google/gson/Gson"));
+        Assertions.assertEquals("shaded/google/gson/stream/JsonReader.class", filtered.mapInternalName("com/google/gson/stream/JsonReader.class"));
+        Assertions.assertEquals("shaded/internal/Excluder", filtered.mapInternalName("com/google/gson/internal/Excluder"));
+        Assertions.assertEquals("shaded/google/gson/internal/bind/TypeAdapters", filtered.mapInternalName("com/google/gson/internal/bind/TypeAdapters"));
+        Assertions.assertEquals("com/google/common/collect/Lists", filtered.mapInternalName("com/google/common/collect/Lists"));
+        Assertions.assertEquals("shaded.google.gson.Gson", filtered.mapValue("com.google.gson.Gson"));
+    }
+}
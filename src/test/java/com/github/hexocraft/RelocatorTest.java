@@ -20,9 +20,39 @@ package com.github.hexocraft;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static com.github.hexocraft.DMRelocator.*;
 
@@ -139,4 +169,583 @@ class RelocatorTest {
             Assertions.assertDoesNotThrow(() -> Class.forName(RELOCATION_ROOT + "vault.economy.Economy"));
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void RelocatePipelined() {
+        Assertions.assertDoesNotThrow(() -> {
+            // The first artifact takes the longest to relocate
+            List<Artifact> artifacts = Arrays.asList(
+                    new Artifact("com.google.guava", "guava", "30.0-jre"),
+                    new Artifact("com.google.code.gson", "gson", "2.8.6"),
+                    new Artifact("org.apache.commons", "commons-lang3", "3.11"));
+            Map<Boolean, List<List<String>>> outputs = new TreeMap<>();
+            for (boolean pipelined : new boolean[]{false, true}) {
+                Path pipelineLibDir = libDir.resolve(pipelined ? "pipelined" : "staged");
+                DMRelocator relocator = Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(pipelineLibDir)
+                        .engine(Engine.BUILT_IN)
+                        .ownClassLoader(true)
+                        .pipelined(pipelined)
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "pipeline.google"))
+                        .addRelocation(new Relocation("org.apache.commons", RELOCATION_ROOT + "pipeline.commons"));
+                artifacts.forEach(relocator::addArtifact);
+                relocator.relocate();
+
+                // The artifacts are injected in the order they were added
+                List<String> injected = new ArrayList<>();
+                for (Enumeration<URL> urls = relocator.getClassLoader().getResources("META-INF/MANIFEST.MF"); urls.hasMoreElements(); ) {
+                    String url = urls.nextElement().toString();
+                    if (url.contains(pipelineLibDir.toString())) {
+                        injected.add(url.substring(url.lastIndexOf('/', url.indexOf("!/") - 1) + 1, url.indexOf("!/")));
+                    }
+                }
+                Assertions.assertEquals(Arrays.asList("guava-30.0-jre.jar", "gson-2.8.6.jar", "commons-lang3-3.11.jar"), injected);
+
+                List<List<String>> entries = new ArrayList<>();
+                for (Artifact artifact : artifacts) {
+                    entries.add(readEntries(artifact.toFile(pipelineLibDir.toAbsolutePath())));
+                }
+                outputs.put(pipelined, entries);
+            }
+
+            // Both modes produce the same relocated artifacts
+            Assertions.assertEquals(outputs.get(false), outputs.get(true));
+        });
+    }
+
+    @Test
+    void RelocateWithBuiltInEngine() {
+        Assertions.assertDoesNotThrow(() -> {
+            List<Artifact> artifacts = Arrays.asList(
+                    new Artifact("com.google.code.gson", "gson", "2.8.6"),
+                    new Artifact("com.google.guava", "guava", "30.0-jre"),
+                    new Artifact("org.apache.commons", "commons-lang3", "3.11"),
+                    new Artifact("org.apache.commons", "commons-text", "1.9"),
+                    new Artifact("org.yaml", "snakeyaml", "1.27"),
+                    new Artifact("com.typesafe", "config", "1.4.1"),
+                    new Artifact("org.spongepowered", "configurate-core", "4.0.0"),
+                    new Artifact("io.leangen.geantyref", "geantyref", "1.3.11"),
+                    new Artifact("org.checkerframework", "checker-qual", "3.8.0"));
+            for (Engine engine : Engine.values()) {
+                DMRelocator relocator = Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(libDir.resolve(engine.name().toLowerCase()))
+                        .engine(engine)
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "engine.google"))
+                        .addRelocation(new Relocation("org.apache.commons", RELOCATION_ROOT + "engine.commons"))
+                        .addRelocation(new Relocation("org.yaml.snakeyaml", RELOCATION_ROOT + "engine.snakeyaml"))
+                        .addRelocation(new Relocation("com.typesafe.config", RELOCATION_ROOT + "engine.config"))
+                        .addRelocation(new Relocation("org.spongepowered.configurate", RELOCATION_ROOT + "engine.configurate"))
+                        .addRelocation(new Relocation("io.leangen.geantyref", RELOCATION_ROOT + "engine.geantyref"))
+                        .addRelocation(new Relocation("org.checkerframework", RELOCATION_ROOT + "engine.checkerframework"));
+                artifacts.forEach(relocator::addArtifact);
+                relocator.relocate();
+            }
+
+            // Both engines produce the same entries. The classes are compared once written again by ASM,
+            // which orders their constant pool and drops the unused constants ASM already dropped
+            // from the jar-relocator output.
+            File asm = new Artifact("org.ow2.asm", "asm", "9.0").toFile(cacheDir.toAbsolutePath());
+            try (URLClassLoader asmClassLoader = new URLClassLoader(new URL[]{asm.toURI().toURL()}, null)) {
+                for (Artifact artifact : artifacts) {
+                    Map<String, byte[]> expected = readEntries(artifact.toFile(libDir.resolve("jar_relocator").toAbsolutePath()), asmClassLoader);
+                    // The built-in engine drops the signature files, which no longer match the relocated classes
+                    expected.keySet().removeIf(name -> name.matches("META-INF/[^/]+\\.(SF|RSA|DSA|EC)"));
+                    Map<String, byte[]> actual = readEntries(artifact.toFile(libDir.resolve("built_in").toAbsolutePath()), asmClassLoader);
+                    Assertions.assertEquals(expected.keySet(), actual.keySet(), artifact.toString());
+                    for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                        Assertions.assertArrayEquals(entry.getValue(), actual.get(entry.getKey()), artifact + " " + entry.getKey());
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    void RelocateAgainWhenRelocationsChange() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path fingerprintLibDir = libDir.resolve("fingerprint");
+            List<String> relocated = new ArrayList<>();
+            for (String relocatedPattern : Arrays.asList("google", "google", "google2")) {
+                Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(fingerprintLibDir)
+                        .engine(Engine.BUILT_IN)
+                        .logger(message -> {
+                            if (message.startsWith("Relocating file")) {
+                                relocated.add(relocatedPattern);
+                            }
+                        })
+                        .addArtifact(new Artifact("com.google.code.gson", "gson", "2.8.6"))
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + relocatedPattern))
+                        .relocate();
+            }
+
+            // The second run reuses the relocated file, the third one relocates it again
+            Assertions.assertEquals(Arrays.asList("google", "google2"), relocated);
+        });
+    }
+
+    @Test
+    void CopyWhenNothingToRelocate() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path copyLibDir = libDir.resolve("copy");
+            Artifact artifact = new Artifact("org.checkerframework", "checker-qual", "3.8.0");
+            Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(cacheDir)
+                    .libDir(copyLibDir)
+                    .addArtifact(artifact)
+                    .addRelocation(new Relocation("org.yaml.snakeyaml", RELOCATION_ROOT + "snakeyaml"))
+                    .relocate();
+
+            Assertions.assertEquals(
+                    FileSha1.sha1Code(artifact.toFile(cacheDir.toAbsolutePath())),
+                    FileSha1.sha1Code(artifact.toFile(copyLibDir.toAbsolutePath())));
+        });
+    }
+
+    @Test
+    void CopyUntouchedEntriesCompressed() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path rawLibDir = libDir.resolve("raw");
+            Artifact artifact = new Artifact("org.apache.commons", "commons-text", "1.9");
+            Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(cacheDir)
+                    .libDir(rawLibDir)
+                    .engine(Engine.BUILT_IN)
+                    .addArtifact(artifact)
+                    .addRelocation(new Relocation("org.apache.commons.text.similarity", RELOCATION_ROOT + "similarity"))
+                    .relocate();
+
+            // The entries which are not relocated keep their compressed data
+            int copied = 0;
+            try (
+                    ZipFile input = new ZipFile(artifact.toFile(cacheDir.toAbsolutePath()));
+                    ZipFile output = new ZipFile(artifact.toFile(rawLibDir.toAbsolutePath()))
+            ) {
+                for (Enumeration<? extends ZipEntry> entries = output.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    ZipEntry inputEntry = input.getEntry(entry.getName());
+                    Assertions.assertFalse(entry.getName().startsWith("org/apache/commons/text/similarity/"), entry.getName());
+                    if (inputEntry != null && !entry.isDirectory() && inputEntry.getCrc() == entry.getCrc()) {
+                        Assertions.assertEquals(inputEntry.getCompressedSize(), entry.getCompressedSize(), entry.getName());
+                        copied++;
+                    }
+                }
+                Assertions.assertNotNull(output.getEntry(RELOCATION_ROOT.replace('.', '/') + "similarity/LevenshteinDistance.class"));
+                Assertions.assertNotNull(output.getEntry("META-INF/MANIFEST.MF"));
+                Assertions.assertNotNull(output.getEntry("org/apache/commons/text/StringSubstitutor.class"));
+            }
+            Assertions.assertTrue(copied > 0);
+        });
+    }
+
+    @Test
+    void RelocateReproducibly() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("com.google.code.gson", "gson", "2.8.6");
+            List<String> sha1 = new ArrayList<>();
+            for (String run : Arrays.asList("first", "second")) {
+                Path runLibDir = libDir.resolve("reproducible-" + run);
+                Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(runLibDir)
+                        .engine(Engine.BUILT_IN)
+                        .addArtifact(artifact)
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "google"))
+                        .relocate();
+                File file = artifact.toFile(runLibDir.toAbsolutePath());
+                sha1.add(FileSha1.sha1Code(file));
+
+                // The generated directories have a fixed time
+                try (ZipFile zipFile = new ZipFile(file)) {
+                    ZipEntry directory = zipFile.getEntry(RELOCATION_ROOT.replace('.', '/'));
+                    Assertions.assertTrue(directory.isDirectory());
+                    Assertions.assertEquals(RawZip.javaTime(RawZip.DOS_EPOCH), directory.getTime());
+                }
+            }
+            Assertions.assertEquals(sha1.get(0), sha1.get(1));
+        });
+    }
+
+    @Test
+    void RelocateMappedJar() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path mappedDir = libDir.resolve("mapped");
+            Files.createDirectories(mappedDir);
+            File input = mappedDir.resolve("input.jar").toFile();
+            File output = mappedDir.resolve("output.jar").toFile();
+            Files.deleteIfExists(output.toPath());
+
+            // A deflated class and a stored resource
+            byte[] classBytes;
+            try (InputStream inputStream = RelocatorTest.class.getResourceAsStream("RelocatorTest.class")) {
+                classBytes = readAllBytes(inputStream);
+            }
+            byte[] resource = "resource".getBytes(StandardCharsets.UTF_8);
+            try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(input))) {
+                zipOut.putNextEntry(new ZipEntry("com/github/hexocraft/RelocatorTest.class"));
+                zipOut.write(classBytes);
+                ZipEntry stored = new ZipEntry("com/github/hexocraft/resource.txt");
+                stored.setMethod(ZipEntry.STORED);
+                stored.setSize(resource.length);
+                CRC32 crc = new CRC32();
+                crc.update(resource);
+                stored.setCrc(crc.getValue());
+                zipOut.putNextEntry(stored);
+                zipOut.write(resource);
+            }
+
+            // Hash and relocate the jar through a memory mapping
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            Assertions.assertEquals(FileSha1.bytesToHexString(digest.digest(Files.readAllBytes(input.toPath()))), FileSha1.sha1Code(input));
+            RelocationRules rules = new RelocationRules(Collections.singletonList(new Relocation("com.github.hexocraft", "mapped.hexocraft")));
+            Relocator.relocateJar(input, output, rules, OutputFormat.JAR, null);
+
+            // The mappings are released
+            Path maps = Paths.get("/proc/self/maps");
+            if (Files.isReadable(maps)) {
+                String mapped = new String(Files.readAllBytes(maps), StandardCharsets.UTF_8);
+                Assertions.assertFalse(mapped.contains(input.getAbsolutePath()));
+            }
+            Files.write(input.toPath(), resource);
+            Files.delete(input.toPath());
+
+            try (ZipFile zipFile = new ZipFile(output)) {
+                ZipEntry relocatedClass = zipFile.getEntry("mapped/hexocraft/RelocatorTest.class");
+                Assertions.assertNotNull(relocatedClass);
+                try (InputStream inputStream = zipFile.getInputStream(relocatedClass)) {
+                    Assertions.assertTrue(new String(readAllBytes(inputStream), StandardCharsets.ISO_8859_1).contains("mapped/hexocraft/RelocatorTest"));
+                }
+                ZipEntry relocatedResource = zipFile.getEntry("mapped/hexocraft/resource.txt");
+                Assertions.assertEquals(ZipEntry.STORED, relocatedResource.getMethod());
+                try (InputStream inputStream = zipFile.getInputStream(relocatedResource)) {
+                    Assertions.assertArrayEquals(resource, readAllBytes(inputStream));
+                }
+            }
+        });
+    }
+
+    @Test
+    void RelocateToEachOutputFormat() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path formatLibDir = libDir.resolve("format");
+            Artifact artifact = new Artifact("com.google.code.gson", "gson", "2.8.6");
+            String gson = RELOCATION_ROOT.replace('.', '/') + "google/gson/Gson.class";
+            for (OutputFormat format : OutputFormat.values()) {
+                Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(formatLibDir)
+                        .engine(Engine.BUILT_IN)
+                        .outputFormat(format)
+                        .addArtifact(artifact)
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "google"))
+                        .relocate();
+
+                File jar = artifact.toFile(formatLibDir.toAbsolutePath());
+                File directory = new File(jar.getParentFile(), "gson-2.8.6");
+                if (format == OutputFormat.DIRECTORY) {
+                    Assertions.assertFalse(jar.exists());
+                    Assertions.assertTrue(new File(directory, gson).isFile());
+                    continue;
+                }
+                Assertions.assertFalse(directory.exists());
+                try (ZipFile zipFile = new ZipFile(jar)) {
+                    Assertions.assertNotNull(zipFile.getEntry(gson));
+                    int expectedMethod = format == OutputFormat.STORED_JAR ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                    Assertions.assertEquals(expectedMethod, zipFile.getEntry(gson).getMethod());
+                }
+            }
+        });
+    }
+
+    @Test
+    void RelocateEntriesInParallel() {
+        Assertions.assertDoesNotThrow(() -> {
+            Artifact artifact = new Artifact("com.google.guava", "guava", "30.0-jre");
+            List<List<String>> outputs = new ArrayList<>();
+            for (int threads : new int[]{1, 4}) {
+                Path threadsLibDir = libDir.resolve("threads-" + threads);
+                Relocator(RelocatorTest.class.getClassLoader())
+                        .cacheDir(cacheDir)
+                        .libDir(threadsLibDir)
+                        .engine(Engine.BUILT_IN)
+                        .relocationThreads(threads)
+                        .addArtifact(artifact)
+                        .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "google"))
+                        .relocate();
+
+                List<String> entries = new ArrayList<>();
+                try (ZipFile zipFile = new ZipFile(artifact.toFile(threadsLibDir.toAbsolutePath()))) {
+                    for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                        ZipEntry entry = e.nextElement();
+                        entries.add(entry.getName() + " " + entry.getCrc() + " " + entry.getCompressedSize());
+                    }
+                }
+                outputs.add(entries);
+            }
+            Assertions.assertEquals(outputs.get(0), outputs.get(1));
+        });
+    }
+
+    @Test
+    void StopRelocatingWhenAClassFails() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path failureDir = libDir.resolve("failure");
+            Files.createDirectories(failureDir);
+            File input = failureDir.resolve("input.jar").toFile();
+            File output = failureDir.resolve("output.jar").toFile();
+            Files.deleteIfExists(output.toPath());
+
+            // Many classes, one of them invalid
+            byte[] classBytes;
+            try (InputStream inputStream = RelocatorTest.class.getResourceAsStream("RelocatorTest.class")) {
+                classBytes = readAllBytes(inputStream);
+            }
+            byte[] invalid = "\u00ca\u00fe\u00ba\u00be com/github/hexocraft/Invalid".getBytes(StandardCharsets.ISO_8859_1);
+            try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(input))) {
+                for (int i = 0; i < 2000; i++) {
+                    zipOut.putNextEntry(new ZipEntry("com/github/hexocraft/Class" + i + ".class"));
+                    zipOut.write(i == 10 ? invalid : classBytes);
+                }
+            }
+
+            // Count the transformations running
+            AtomicInteger running = new AtomicInteger();
+            ExecutorService executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+                @Override
+                protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+                    return new FutureTask<>(() -> {
+                        running.incrementAndGet();
+                        try {
+                            return callable.call();
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    });
+                }
+            };
+            try {
+                RelocationRules rules = new RelocationRules(Collections.singletonList(new Relocation("com.github.hexocraft", "failure.hexocraft")));
+                RelocatorException exception = Assertions.assertThrows(RelocatorException.class, () -> Relocator.relocateJar(input, output, rules, OutputFormat.JAR, executor));
+                Assertions.assertTrue(exception.getMessage().contains("Class10.class"), exception.getMessage());
+
+                // The partial output is deleted, and no transformation is left running
+                Assertions.assertFalse(output.exists());
+                Assertions.assertEquals(0, running.get());
+            } finally {
+                executor.shutdownNow();
+            }
+        });
+    }
+
+    @Test
+    void LoadWithOwnClassLoader() {
+        Assertions.assertDoesNotThrow(() -> {
+            DMRelocator relocator = Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(cacheDir)
+                    .libDir(libDir.resolve("own"))
+                    .ownClassLoader(true)
+                    .addArtifact(new Artifact("com.google.code.gson", "gson", "2.8.6"))
+                    .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "own.google"))
+                    .relocate();
+
+            ClassLoader classLoader = relocator.getClassLoader();
+            Assertions.assertTrue(classLoader instanceof LibraryClassLoader);
+            Class<?> gson = Class.forName(RELOCATION_ROOT + "own.google.gson.Gson", true, classLoader);
+            Assertions.assertSame(classLoader, gson.getClassLoader());
+            Assertions.assertNotNull(gson.getConstructor().newInstance());
+            Assertions.assertThrows(ClassNotFoundException.class, () -> Class.forName(RELOCATION_ROOT + "own.google.gson.Missing", false, classLoader));
+            Assertions.assertThrows(ClassNotFoundException.class, () -> Class.forName(RELOCATION_ROOT + "own.google.gson.Missing", false, classLoader));
+            Assertions.assertThrows(ClassNotFoundException.class, () -> Class.forName(RELOCATION_ROOT + "own.google.gson.Gson"));
+            Assertions.assertNotNull(classLoader.getResource(RELOCATION_ROOT.replace('.', '/') + "own/google/gson/Gson.class"));
+
+            relocator.close();
+            Assertions.assertSame(RelocatorTest.class.getClassLoader(), relocator.getClassLoader());
+        });
+    }
+
+    @Test
+    void LoadParentClassesFirst() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path parentFirstDir = libDir.resolve("parent-first");
+            Files.createDirectories(parentFirstDir);
+            byte[] classBytes;
+            try (InputStream inputStream = RelocatorTest.class.getResourceAsStream("Benchmarks.class")) {
+                classBytes = readAllBytes(inputStream);
+            }
+            File[] jars = new File[3];
+            for (int i = 0; i < jars.length; i++) {
+                jars[i] = parentFirstDir.resolve("copy-" + i + ".jar").toFile();
+                try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(jars[i]))) {
+                    zipOut.putNextEntry(new ZipEntry("com/github/hexocraft/Benchmarks.class"));
+                    zipOut.write(classBytes);
+                }
+            }
+
+            ClassLoader parent = RelocatorTest.class.getClassLoader();
+            try (LibraryClassLoader classLoader = new LibraryClassLoader(parent)) {
+                classLoader.addLocalPackage("local.hexocraft");
+                classLoader.addLibrary(jars[0]);
+                classLoader.addLibrary(jars[1], new RelocationRules(Collections.singletonList(new Relocation("com.github.hexocraft", "local.hexocraft"))));
+                classLoader.addLibrary(jars[2], new RelocationRules(Collections.singletonList(new Relocation("com.github.hexocraft", "other.hexocraft"))));
+
+                // A class the parent has is not defined again
+                Assertions.assertSame(parent.loadClass("com.github.hexocraft.Benchmarks"), classLoader.loadClass("com.github.hexocraft.Benchmarks"));
+                // Relocated classes are loaded from the artifacts, first or when the parent does not have them
+                Assertions.assertSame(classLoader, classLoader.loadClass("local.hexocraft.Benchmarks").getClassLoader());
+                Assertions.assertSame(classLoader, classLoader.loadClass("other.hexocraft.Benchmarks").getClassLoader());
+                Assertions.assertThrows(ClassNotFoundException.class, () -> classLoader.loadClass("other.hexocraft.Missing"));
+            }
+        });
+    }
+
+    @Test
+    void RelocateClassesWhenLoaded() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path lazyLibDir = libDir.resolve("lazy");
+            Artifact artifact = new Artifact("com.google.code.gson", "gson", "2.8.6");
+            DMRelocator relocator = Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(cacheDir)
+                    .libDir(lazyLibDir)
+                    .lazy(true)
+                    .addArtifact(artifact)
+                    .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "lazy.google"))
+                    .relocate();
+
+            Assertions.assertFalse(artifact.toFile(lazyLibDir.toAbsolutePath()).exists());
+            ClassLoader classLoader = relocator.getClassLoader();
+            Class<?> gson = Class.forName(RELOCATION_ROOT + "lazy.google.gson.Gson", true, classLoader);
+            Object instance = gson.getConstructor().newInstance();
+            Assertions.assertEquals("[1,2]", gson.getMethod("toJson", Object.class).invoke(instance, new int[]{1, 2}));
+            Assertions.assertThrows(ClassNotFoundException.class, () -> Class.forName("com.google.gson.Gson", false, classLoader));
+
+            // Class files read as resources are relocated as well
+            String relocatedGson = (RELOCATION_ROOT + "lazy.google.gson.Gson").replace('.', '/');
+            byte[] bytes;
+            try (InputStream in = classLoader.getResourceAsStream(relocatedGson + ".class")) {
+                Assertions.assertNotNull(in);
+                bytes = readAllBytes(in);
+            }
+            String content = new String(bytes, StandardCharsets.ISO_8859_1);
+            Assertions.assertTrue(content.contains(relocatedGson));
+            Assertions.assertFalse(content.contains("com/google/gson/"));
+            Assertions.assertNull(classLoader.getResource("com/google/gson/Gson.class"));
+        });
+    }
+
+    @Test
+    void LoadLockedArtifactsOffline() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path lockCacheDir = cacheDir.resolveSibling("lock-cache");
+            Path lockLibDir = libDir.resolve("lock");
+            Artifact artifact = new Artifact("com.google.code.gson", "gson", "2.8.6");
+            Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(lockCacheDir)
+                    .libDir(lockLibDir)
+                    .engine(Engine.BUILT_IN)
+                    .ownClassLoader(true)
+                    .locked(true)
+                    .addArtifact(artifact)
+                    .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "lock.google"))
+                    .relocate();
+            Assertions.assertTrue(Files.isRegularFile(lockLibDir.resolve(LockManifest.FILE_NAME)));
+
+            // Nothing is downloaded while the lock manifest matches
+            Downloader.deleteDir(lockCacheDir);
+            Transport offline = (url, headers) -> {
+                throw new IOException("Offline: " + url);
+            };
+            DMRelocator relocator = Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(lockCacheDir)
+                    .libDir(lockLibDir)
+                    .engine(Engine.BUILT_IN)
+                    .ownClassLoader(true)
+                    .locked(true)
+                    .transport(offline)
+                    .addArtifact(new Artifact("com.google.code.gson", "gson", "2.8.6"))
+                    .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "lock.google"))
+                    .relocate();
+            Assertions.assertDoesNotThrow(() -> Class.forName(RELOCATION_ROOT + "lock.google.gson.Gson", false, relocator.getClassLoader()));
+
+            // Refreshing resolves the artifacts again
+            Assertions.assertThrows(RelocatorException.class, () -> relocator.refresh().relocate());
+        });
+    }
+
+    @Test
+    void WriteClassDataSharingOptions() {
+        Assertions.assertDoesNotThrow(() -> {
+            Path cdsLibDir = libDir.resolve("cds");
+            Relocator(RelocatorTest.class.getClassLoader())
+                    .cacheDir(cacheDir)
+                    .libDir(cdsLibDir)
+                    .engine(Engine.BUILT_IN)
+                    .ownClassLoader(true)
+                    .classDataSharing(true)
+                    .addArtifact(new Artifact("com.google.code.gson", "gson", "2.8.6"))
+                    .addRelocation(new Relocation("com.google", RELOCATION_ROOT + "cds.google"))
+                    .relocate();
+
+            Path options = cdsLibDir.resolve(ClassDataSharing.OPTIONS_FILE_NAME);
+            Assertions.assertEquals(ClassDataSharing.isSupported(), Files.isRegularFile(options));
+            if (ClassDataSharing.isSupported()) {
+                String content = new String(Files.readAllBytes(options), StandardCharsets.UTF_8);
+                Assertions.assertTrue(content.contains(ClassDataSharing.ARCHIVE_FOLDER_NAME));
+                Assertions.assertTrue(content.trim().endsWith(".jsa"));
+            }
+        });
+    }
+
+    /**
+     * @return the name, crc and size of each entry of a jar file
+     */
+    private static List<String> readEntries(File file) throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                entries.add(entry.getName() + " " + entry.getCrc() + " " + entry.getSize());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the content of each entry of a jar file, classes being written again by ASM
+     */
+    private static Map<String, byte[]> readEntries(File file, ClassLoader asmClassLoader) throws Exception {
+        Class<?> classReader = asmClassLoader.loadClass("org.objectweb.asm.ClassReader");
+        Class<?> classWriter = asmClassLoader.loadClass("org.objectweb.asm.ClassWriter");
+        Class<?> classVisitor = asmClassLoader.loadClass("org.objectweb.asm.ClassVisitor");
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (JarFile jarFile = new JarFile(file)) {
+            for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                byte[] content;
+                try (InputStream inputStream = jarFile.getInputStream(entry)) {
+                    content = readAllBytes(inputStream);
+                }
+                if (entry.getName().endsWith(".class")) {
+                    Object reader = classReader.getConstructor(byte[].class).newInstance((Object) content);
+                    Object writer = classWriter.getConstructor(int.class).newInstance(0);
+                    classReader.getMethod("accept", classVisitor, int.class).invoke(reader, writer, 0);
+                    content = (byte[]) classWriter.getMethod("toByteArray").invoke(writer);
+                }
+                entries.put(entry.getName(), content);
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] readAllBytes(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, count);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.hexocraft;
+
+/**
+ *    Copyright 2020 hexosse <hexosse@gmail.com>
+ *
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import com.github.hexocraft.DMRelocator.Response;
+import com.github.hexocraft.DMRelocator.Transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Offline transport serving files from memory
+ * <p>
+ * Unknown urls are answered with a 404 response, range requests are supported.
+ * Every request is recorded as "GET url" or "RANGE url". The body of a gated url
+ * is only served once its latch is released.
+ */
+class StubTransport implements Transport {
+
+    // Content of the served files, by url
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    // Latches to wait for before serving the bodies, by url
+    private final Map<String, CountDownLatch> gates = new ConcurrentHashMap<>();
+    // Requests received
+    final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    StubTransport put(String url, byte[] content) {
+        files.put(url, content);
+        return this;
+    }
+
+    StubTransport put(String url, String content) {
+        return put(url, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    StubTransport gate(String url, CountDownLatch latch) {
+        gates.put(url, latch);
+        return this;
+    }
+
+    StubTransport remove(String url) {
+        files.remove(url);
+        return this;
+    }
+
+    /**
+     * @param prefix url prefix
+     * @return the number of requests sent to urls starting with the prefix
+     */
+    long count(String prefix) {
+        synchronized (requests) {
+            return requests.stream().filter(r -> r.substring(r.indexOf(' ') + 1).startsWith(prefix)).count();
+        }
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> headers) {
+        String range = headers.get("Range");
+        requests.add((range != null ? "RANGE " : "GET ") + url);
+        byte[] content = files.get(url.toString());
+        if (content == null) {
+            return new StubResponse(url, 404, new byte[0], null, null);
+        }
+        if (range != null) {
+            int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (start >= content.length) {
+                return new StubResponse(url, 416, new byte[0], null, null);
+            }
+            String contentRange = "bytes " + start + "-" + (content.length - 1) + "/" + content.length;
+            return new StubResponse(url, 206, Arrays.copyOfRange(content, start, content.length), contentRange, gates.get(url.toString()));
+        }
+        return new StubResponse(url, 200, content, null, gates.get(url.toString()));
+    }
+
+    private static class StubResponse implements Response {
+        private final URL url;
+        private final int status;
+        private final byte[] body;
+        private final String contentRange;
+        private final CountDownLatch gate;
+
+        StubResponse(URL url, int status, byte[] body, String contentRange, CountDownLatch gate) {
+            this.url = url;
+            this.status = status;
+            this.body = body;
+            this.contentRange = contentRange;
+            this.gate = gate;
+        }
+
+        @Override
+        public URL url() {
+            return url;
+        }
+
+        @Override
+        public int status() {
+            return status;
+        }
+
+        @Override
+        public String header(String name) {
+            return "Content-Range".equalsIgnoreCase(name) ? contentRange : null;
+        }
+
+        @Override
+        public InputStream body() throws IOException {
+            try {
+                if (gate != null && !gate.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Gate not released: " + url);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(url.toString());
+            }
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}